@@ -0,0 +1,247 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregates the hits of a breakpoint in the agent instead of sending them: numeric locals and JDK numbers go into a
+ * {@link Histogram}, strings, enums, booleans and characters into a {@link TopK} of their values, other objects into
+ * a {@link TopK} of their types. Optionally the callers of the method are counted as well.
+ *
+ * Variables are aggregated by name, over all methods the breakpoint is in. Floats and doubles lose their fraction.
+ * Recording a hit takes atomic operations only, and doesn't allocate: the TopKs count the values themselves, or their
+ * class, and these are only turned into text for a snapshot.
+ */
+public final class Aggregation {
+	private static final int TOP_K = 20;
+	private static final int MAX_KEY_LENGTH = 200;
+	// Only the caller of the breakpoint's method, above Aggregation.record() and the DebuggerAgent entrypoint
+	private static final StackCapture CALLER = StackCapture.create(1, 2);
+	private static final String NO_CALLER = "<none>";
+
+	private abstract static class Accumulator {
+		abstract void record(CaptureBuffer buffer, int slot);
+
+		abstract void reset();
+	}
+
+	private static final class NumericAccumulator extends Accumulator {
+		private final char type;
+		private final Histogram histogram = new Histogram();
+
+		NumericAccumulator(char type) {
+			this.type = type;
+		}
+
+		@Override
+		void record(CaptureBuffer buffer, int slot) {
+			long value = buffer.getPrimitive(slot);
+			switch (type) {
+			case 'F':
+				histogram.record((long) Float.intBitsToFloat((int) value));
+				break;
+			case 'D':
+				histogram.record((long) Double.longBitsToDouble(value));
+				break;
+			default:
+				histogram.record(value);
+			}
+		}
+
+		@Override
+		void reset() {
+			histogram.reset();
+		}
+
+		@Override
+		public String toString() {
+			return histogram.toString();
+		}
+	}
+
+	private static final class ValueAccumulator extends Accumulator {
+		// The key of null values
+		private static final Object NULL = new Object();
+
+		private final char type;
+		private final TopK topK = new TopK(TOP_K);
+		// Numbers held by references, created with the first one
+		private volatile Histogram numbers;
+
+		ValueAccumulator(char type) {
+			this.type = type;
+		}
+
+		@Override
+		void record(CaptureBuffer buffer, int slot) {
+			switch (type) {
+			case 'Z':
+				topK.add(buffer.getPrimitive(slot) != 0 ? Boolean.TRUE : Boolean.FALSE);
+				break;
+			case 'C':
+				// Cached for ASCII
+				topK.add(Character.valueOf((char) buffer.getPrimitive(slot)));
+				break;
+			default:
+				Object value = buffer.getReference(slot);
+				if (value == null) {
+					topK.add(NULL);
+				} else if (value instanceof String || value instanceof Enum<?> || value instanceof Boolean || value instanceof Character) {
+					topK.add(value);
+				} else if (isJdkNumber(value)) {
+					numbers().record(((Number) value).longValue());
+				} else {
+					topK.add(value.getClass());
+				}
+			}
+		}
+
+		private Histogram numbers() {
+			Histogram result = numbers;
+			if (result == null) {
+				synchronized (this) {
+					result = numbers;
+					if (result == null) {
+						result = new Histogram();
+						numbers = result;
+					}
+				}
+			}
+			return result;
+		}
+
+		@Override
+		void reset() {
+			topK.reset();
+			Histogram numbers = this.numbers;
+			if (numbers != null) {
+				numbers.reset();
+			}
+		}
+
+		@Override
+		public String toString() {
+			List<String> top = new ArrayList<String>();
+			for (TopK.Entry entry : topK.top()) {
+				top.add(describe(entry.getKey()) + "=" + entry.getCount() + (entry.getError() > 0 ? " (+-" + entry.getError() + ")" : ""));
+			}
+			Histogram numbers = this.numbers;
+			if (numbers == null || numbers.getCount() == 0) {
+				return "top " + top;
+			}
+			return (top.isEmpty() ? "" : "top " + top + ", ") + "numbers " + numbers;
+		}
+
+		private static String describe(Object key) {
+			if (key == NULL) {
+				return "null";
+			} else if (key instanceof String) {
+				return truncate((String) key);
+			} else if (key instanceof Enum<?>) {
+				return ((Enum<?>) key).name();
+			} else if (key instanceof Class<?>) {
+				return ((Class<?>) key).getName();
+			}
+			return String.valueOf(key);
+		}
+	}
+
+	private final Breakpoint breakpoint;
+	private final boolean callers;
+	private final StripedCounter hits = new StripedCounter();
+	// Counted by frame, which compares by class, method, file and line
+	private final TopK callerCounts = new TopK(TOP_K);
+	private final Map<String, Accumulator> byVariable = new LinkedHashMap<String, Accumulator>();
+	// By layout id, the accumulators of the layout's variables
+	private volatile Accumulator[][] byLayout = new Accumulator[0][];
+
+	public Aggregation(Breakpoint breakpoint, boolean callers) {
+		this.breakpoint = breakpoint;
+		this.callers = callers;
+	}
+
+	public boolean isCallers() {
+		return callers;
+	}
+
+	void record(CaptureBuffer buffer, CaptureLayout layout) {
+		hits.increment();
+		Accumulator[] accumulators = accumulators(layout);
+		for (int i = 0; i < accumulators.length; i++) {
+			accumulators[i].record(buffer, layout.getSlot(i));
+		}
+		if (callers) {
+			StackTraceElement[] frames = CALLER.capture().getStackTrace();
+			callerCounts.add(frames.length > 0 ? frames[0] : NO_CALLER);
+		}
+	}
+
+	private Accumulator[] accumulators(CaptureLayout layout) {
+		Accumulator[][] current = byLayout;
+		if (layout.getId() < current.length && current[layout.getId()] != null) {
+			return current[layout.getId()];
+		}
+		synchronized (this) {
+			current = byLayout;
+			if (layout.getId() < current.length && current[layout.getId()] != null) {
+				return current[layout.getId()];
+			}
+			Accumulator[] accumulators = new Accumulator[layout.getVariableCount()];
+			for (int i = 0; i < accumulators.length; i++) {
+				String desc = layout.getDesc(i);
+				String key = layout.getName(i) + " " + desc;
+				Accumulator accumulator = byVariable.get(key);
+				if (accumulator == null) {
+					char type = desc.charAt(0);
+					accumulator = "BSIJFD".indexOf(type) >= 0 ? new NumericAccumulator(type) : new ValueAccumulator(type);
+					byVariable.put(key, accumulator);
+				}
+				accumulators[i] = accumulator;
+			}
+			Accumulator[][] newByLayout = Arrays.copyOf(current, Math.max(current.length, layout.getId() + 1));
+			newByLayout[layout.getId()] = accumulators;
+			byLayout = newByLayout;
+			return accumulators;
+		}
+	}
+
+	public synchronized void reset() {
+		hits.reset();
+		callerCounts.reset();
+		for (Accumulator accumulator : byVariable.values()) {
+			accumulator.reset();
+		}
+	}
+
+	public synchronized String snapshot() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(breakpoint).append(": ").append(hits.sum()).append(" hits");
+		for (Map.Entry<String, Accumulator> entry : byVariable.entrySet()) {
+			sb.append("\n\t").append(entry.getKey().substring(0, entry.getKey().indexOf(' '))).append(": ").append(entry.getValue());
+		}
+		if (callers) {
+			sb.append("\n\tcallers: ").append(callerCounts.top());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Whether the value is a number of the JDK whose <code>longValue()</code> runs no application code.
+	 */
+	private static boolean isJdkNumber(Object value) {
+		Class<?> c = value.getClass();
+		return c == Integer.class || c == Long.class || c == Double.class || c == Float.class || c == Short.class || c == Byte.class
+				|| c == BigDecimal.class || c == BigInteger.class || c == AtomicInteger.class || c == AtomicLong.class;
+	}
+
+	private static String truncate(String s) {
+		return s.length() > MAX_KEY_LENGTH ? s.substring(0, MAX_KEY_LENGTH) + "..." : s;
+	}
+}
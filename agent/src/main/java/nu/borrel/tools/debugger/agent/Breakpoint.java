@@ -0,0 +1,156 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.util.regex.Pattern;
+
+import nu.borrel.tools.debugger.agent.asm.Condition;
+
+public class Breakpoint {
+	private final int id;
+	private final String className;
+	private final String methodName;
+	private final String methodDesc;
+	private final int line;
+	private final Condition condition;
+	private final HitGuard guard = new HitGuard();
+	private volatile StackCapture stackCapture = StackCapture.FULL;
+	private volatile Aggregation aggregation;
+	private volatile SnapshotLimits snapshotLimits = SnapshotLimits.DEFAULT;
+	// For pattern breakpoints: the globs compiled over internal class names and method names
+	private final Pattern classPattern;
+	private final Pattern methodPattern;
+	private final String annotation;
+
+	/**
+	 * @param methodName the method name, or the name followed by the descriptor for a single overload, for instance
+	 * <code>compute(ILjava/lang/String;)I</code>
+	 */
+	public Breakpoint(int id, String className, String methodName, int line, Condition condition) {
+		this.id = id;
+		this.className = className;
+		int descStart = methodName.indexOf('(');
+		this.methodName = descStart >= 0 ? methodName.substring(0, descStart) : methodName;
+		this.methodDesc = descStart >= 0 ? methodName.substring(descStart) : null;
+		this.line = line;
+		this.condition = condition;
+		this.classPattern = null;
+		this.methodPattern = null;
+		this.annotation = null;
+	}
+
+	/**
+	 * A pattern breakpoint, at the first line of every method matching <code>methodPattern</code> in every class
+	 * matching <code>classPattern</code>, see {@link Glob}. Class patterns use '.' as separator.
+	 * 
+	 * @param annotation if not <code>null</code>: the binary name of an annotation the class must have
+	 */
+	public Breakpoint(int id, String classPattern, String methodPattern, Condition condition, String annotation) {
+		this.id = id;
+		this.className = classPattern;
+		this.methodName = methodPattern;
+		this.methodDesc = null;
+		this.line = 0;
+		this.condition = condition;
+		this.classPattern = Glob.compile(classPattern.replace('.', '/'), '/');
+		this.methodPattern = Glob.compile(methodPattern, (char) 0);
+		this.annotation = annotation != null ? "L" + annotation.replace('.', '/') + ";" : null;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	public String getMethodName() {
+		return methodName;
+	}
+
+	/**
+	 * The descriptor of the method, <code>null</code> if the breakpoint applies to the overload that contains its line.
+	 */
+	public String getMethodDesc() {
+		return methodDesc;
+	}
+
+	public boolean isPattern() {
+		return classPattern != null;
+	}
+
+	/**
+	 * The literal part of the class pattern, as internal name.
+	 */
+	public String getClassPrefix() {
+		return Glob.literalPrefix(className).replace('.', '/');
+	}
+
+	public boolean matchesClass(String internalName) {
+		return classPattern.matcher(internalName).matches();
+	}
+
+	/**
+	 * Whether the method pattern selects the method. Constructors and static initializers are only selected
+	 * when the pattern asks for them explicitly.
+	 */
+	public boolean matchesMethod(String name) {
+		if (name.charAt(0) == '<' && methodName.charAt(0) != '<') {
+			return false;
+		}
+		return methodPattern.matcher(name).matches();
+	}
+
+	/**
+	 * The descriptor of the annotation a class needs for this pattern breakpoint, <code>null</code> for any class.
+	 */
+	public String getAnnotation() {
+		return annotation;
+	}
+
+	public int getLine() {
+		return line;
+	}
+
+	/**
+	 * The condition that must hold for the breakpoint to fire, <code>null</code> if it always fires.
+	 */
+	public Condition getCondition() {
+		return condition;
+	}
+
+	public HitGuard getGuard() {
+		return guard;
+	}
+
+	public StackCapture getStackCapture() {
+		return stackCapture;
+	}
+
+	public void setStackCapture(StackCapture stackCapture) {
+		this.stackCapture = stackCapture;
+	}
+
+	/**
+	 * The aggregation hits go into, <code>null</code> if every hit is sent.
+	 */
+	public Aggregation getAggregation() {
+		return aggregation;
+	}
+
+	public void setAggregation(Aggregation aggregation) {
+		this.aggregation = aggregation;
+	}
+
+	public SnapshotLimits getSnapshotLimits() {
+		return snapshotLimits;
+	}
+
+	public void setSnapshotLimits(SnapshotLimits snapshotLimits) {
+		this.snapshotLimits = snapshotLimits;
+	}
+
+	@Override
+	public String toString() {
+		return "#" + id + " " + (annotation != null ? "@" + annotation.substring(1, annotation.length() - 1).replace('/', '.') + " " : "") + className + "#" + methodName + (methodDesc != null ? methodDesc : "") + ":" + line + (condition != null ? " if " + condition : "");
+	}
+}
@@ -0,0 +1,224 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+
+/**
+ * Many breakpoint hits in one notification.
+ *
+ * The hits are stored column-wise: class and method names, as well as the parts of stack frames, are indexes into one
+ * shared string table, and stacks are lists of indexes into a table of distinct frames. The local variables of all
+ * hits are {@link SnapshotEncoder snapshots} in one byte array, decoded when asked for.
+ */
+public class BreakpointBatchNotification extends Notification {
+	private static final long serialVersionUID = DebuggerAgent.VERSION;
+	private static final AtomicLong sequenceNumber = new AtomicLong();
+
+	private final String[] strings;
+
+	private final int hitCount;
+	private final int[] classNames;
+	private final int[] methodNames;
+	private final int[] lines;
+	private final long[] timeStamps;
+
+	// Distinct frames
+	private final int[] frameClassNames;
+	private final int[] frameMethodNames;
+	private final int[] frameFileNames;
+	private final int[] frameLines;
+
+	// Hit i uses stackFrames[stackOffsets[i] .. stackOffsets[i + 1]), likewise for the snapshots.
+	private final int[] stackOffsets;
+	private final int[] stackFrames;
+	private final int[] snapshotOffsets;
+	private final byte[] snapshots;
+
+	private BreakpointBatchNotification(Object source, Builder builder) {
+		super(BreakpointBatchNotification.class.getName(), source, sequenceNumber.incrementAndGet(), System.currentTimeMillis());
+		this.strings = builder.strings.toArray(new String[builder.strings.size()]);
+		this.hitCount = builder.hitCount;
+		this.classNames = Arrays.copyOf(builder.classNames, hitCount);
+		this.methodNames = Arrays.copyOf(builder.methodNames, hitCount);
+		this.lines = Arrays.copyOf(builder.lines, hitCount);
+		this.timeStamps = Arrays.copyOf(builder.timeStamps, hitCount);
+		int frameCount = builder.frames.size();
+		this.frameClassNames = Arrays.copyOf(builder.frameClassNames, frameCount);
+		this.frameMethodNames = Arrays.copyOf(builder.frameMethodNames, frameCount);
+		this.frameFileNames = Arrays.copyOf(builder.frameFileNames, frameCount);
+		this.frameLines = Arrays.copyOf(builder.frameLines, frameCount);
+		this.stackOffsets = Arrays.copyOf(builder.stackOffsets, hitCount + 1);
+		this.stackFrames = Arrays.copyOf(builder.stackFrames, builder.stackOffsets[hitCount]);
+		this.snapshotOffsets = Arrays.copyOf(builder.snapshotOffsets, hitCount + 1);
+		this.snapshots = Arrays.copyOf(builder.snapshots, builder.snapshotOffsets[hitCount]);
+	}
+
+	public int getHitCount() {
+		return hitCount;
+	}
+
+	public String getClassName(int hit) {
+		return strings[classNames[hit]];
+	}
+
+	public String getMethodName(int hit) {
+		return strings[methodNames[hit]];
+	}
+
+	public int getLine(int hit) {
+		return lines[hit];
+	}
+
+	public long getTimeStamp(int hit) {
+		return timeStamps[hit];
+	}
+
+	public StackTraceElement[] getStackTrace(int hit) {
+		StackTraceElement[] stack = new StackTraceElement[stackOffsets[hit + 1] - stackOffsets[hit]];
+		for (int i = 0; i < stack.length; i++) {
+			int frame = stackFrames[stackOffsets[hit] + i];
+			String fileName = frameFileNames[frame] < 0 ? null : strings[frameFileNames[frame]];
+			stack[i] = new StackTraceElement(strings[frameClassNames[frame]], strings[frameMethodNames[frame]], fileName, frameLines[frame]);
+		}
+		return stack;
+	}
+
+	public Map<String, Serializable> getLocalVariables(int hit) {
+		return SnapshotDecoder.decode(snapshots, snapshotOffsets[hit]);
+	}
+
+	/**
+	 * The member variables of <code>this</code> in the hit, by field name.
+	 */
+	public Map<String, Serializable> getMemberVariables(int hit) {
+		return SnapshotDecoder.getMemberVariables(getLocalVariables(hit));
+	}
+
+	/**
+	 * Collects hits into columns, deduplicating strings and frames as it goes.
+	 */
+	public static class Builder {
+		private final List<String> strings = new ArrayList<String>();
+		private final Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+		private final Map<StackTraceElement, Integer> frames = new HashMap<StackTraceElement, Integer>();
+
+		private int hitCount;
+		private long firstTimeStamp;
+		private int[] classNames = new int[16];
+		private int[] methodNames = new int[16];
+		private int[] lines = new int[16];
+		private long[] timeStamps = new long[16];
+
+		private int[] frameClassNames = new int[16];
+		private int[] frameMethodNames = new int[16];
+		private int[] frameFileNames = new int[16];
+		private int[] frameLines = new int[16];
+
+		private int[] stackOffsets = new int[17];
+		private int[] stackFrames = new int[64];
+		private int[] snapshotOffsets = new int[17];
+		private byte[] snapshots = new byte[1024];
+
+		public void addHit(String className, String methodName, int line, long timeStamp, StackTraceElement[] stack) {
+			if (hitCount == classNames.length) {
+				int size = hitCount * 2;
+				classNames = Arrays.copyOf(classNames, size);
+				methodNames = Arrays.copyOf(methodNames, size);
+				lines = Arrays.copyOf(lines, size);
+				timeStamps = Arrays.copyOf(timeStamps, size);
+				stackOffsets = Arrays.copyOf(stackOffsets, size + 1);
+				snapshotOffsets = Arrays.copyOf(snapshotOffsets, size + 1);
+			}
+			if (hitCount == 0) {
+				firstTimeStamp = System.currentTimeMillis();
+			}
+			classNames[hitCount] = string(className);
+			methodNames[hitCount] = string(methodName);
+			lines[hitCount] = line;
+			timeStamps[hitCount] = timeStamp;
+
+			int offset = stackOffsets[hitCount];
+			if (offset + stack.length > stackFrames.length) {
+				stackFrames = Arrays.copyOf(stackFrames, Math.max(stackFrames.length * 2, offset + stack.length));
+			}
+			for (StackTraceElement ste : stack) {
+				stackFrames[offset++] = frame(ste);
+			}
+			stackOffsets[hitCount + 1] = offset;
+			snapshotOffsets[hitCount + 1] = snapshotOffsets[hitCount];
+			hitCount++;
+		}
+
+		/**
+		 * Sets the snapshot of the local variables of the hit last added, from the buffer's position to its limit.
+		 */
+		public void setSnapshot(ByteBuffer snapshot) {
+			int offset = snapshotOffsets[hitCount - 1];
+			int length = snapshot.remaining();
+			if (offset + length > snapshots.length) {
+				snapshots = Arrays.copyOf(snapshots, Math.max(snapshots.length * 2, offset + length));
+			}
+			snapshot.get(snapshots, offset, length);
+			snapshotOffsets[hitCount] = offset + length;
+		}
+
+		private int string(String s) {
+			Integer index = stringIndexes.get(s);
+			if (index == null) {
+				index = strings.size();
+				strings.add(s);
+				stringIndexes.put(s, index);
+			}
+			return index;
+		}
+
+		private int frame(StackTraceElement ste) {
+			Integer index = frames.get(ste);
+			if (index == null) {
+				index = frames.size();
+				if (index == frameClassNames.length) {
+					frameClassNames = Arrays.copyOf(frameClassNames, index * 2);
+					frameMethodNames = Arrays.copyOf(frameMethodNames, index * 2);
+					frameFileNames = Arrays.copyOf(frameFileNames, index * 2);
+					frameLines = Arrays.copyOf(frameLines, index * 2);
+				}
+				frameClassNames[index] = string(ste.getClassName());
+				frameMethodNames[index] = string(ste.getMethodName());
+				frameFileNames[index] = ste.getFileName() == null ? -1 : string(ste.getFileName());
+				frameLines[index] = ste.getLineNumber();
+				frames.put(ste, index);
+			}
+			return index;
+		}
+
+		public int getHitCount() {
+			return hitCount;
+		}
+
+		/**
+		 * The wall clock time at which the first hit of this batch was added.
+		 */
+		public long getFirstTimeStamp() {
+			return firstTimeStamp;
+		}
+
+		public BreakpointBatchNotification build(Object source) {
+			return new BreakpointBatchNotification(source, this);
+		}
+
+		public void clear() {
+			strings.clear();
+			stringIndexes.clear();
+			frames.clear();
+			hitCount = 0;
+		}
+	}
+}
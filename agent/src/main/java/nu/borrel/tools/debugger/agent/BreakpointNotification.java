@@ -1,7 +1,6 @@
 package nu.borrel.tools.debugger.agent;
 
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -13,15 +12,18 @@ public class BreakpointNotification extends Notification {
 	private final String className;
 	private final String methodName;
 	private final int line;
-	private final StackTraceElement[] stack;
-	private final Map<String, Serializable> localVariables = new HashMap<String, Serializable>();
+	private final CapturedStack stack;
+	// Encoded by SnapshotEncoder, only decoded when asked for.
+	private final byte[] snapshot;
+	private transient Map<String, Serializable> localVariables;
 
-	public BreakpointNotification(Object source, Object who, String name, int line, StackTraceElement[] stack) {
-		super(BreakpointNotification.class.getName(), source, sequenceNumber.incrementAndGet(), System.currentTimeMillis());
-		this.className = who.getClass().getName();
+	public BreakpointNotification(Object source, String className, String name, int line, long timeStamp, CapturedStack stack, byte[] snapshot) {
+		super(BreakpointNotification.class.getName(), source, sequenceNumber.incrementAndGet(), timeStamp);
+		this.className = className;
 		this.methodName = name;
 		this.line = line;
 		this.stack = stack;
+		this.snapshot = snapshot;
 	}
 
 	public String getClassName() {
@@ -37,10 +39,27 @@ public class BreakpointNotification extends Notification {
 	}
 
 	public StackTraceElement[] getStackTrace() {
-		return stack;
+		return stack != null ? stack.getStackTrace() : new StackTraceElement[0];
 	}
 	
-	public Map<String, Serializable> getLocalVariables() {
+	public synchronized Map<String, Serializable> getLocalVariables() {
+		if (localVariables == null) {
+			localVariables = SnapshotDecoder.decode(snapshot);
+		}
 		return localVariables;
 	}
+
+	/**
+	 * The member variables of <code>this</code>, by field name.
+	 */
+	public Map<String, Serializable> getMemberVariables() {
+		return SnapshotDecoder.getMemberVariables(getLocalVariables());
+	}
+
+	/**
+	 * The local variables as encoded by {@link SnapshotEncoder}.
+	 */
+	public byte[] getSnapshot() {
+		return snapshot;
+	}
 }
\ No newline at end of file
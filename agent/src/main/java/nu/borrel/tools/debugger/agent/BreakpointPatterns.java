@@ -0,0 +1,84 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The pattern breakpoints, indexed by the literal prefix of their class pattern.
+ *
+ * The prefixes form a trie over internal class names. Matching a class walks the trie along its name, and only checks
+ * the full pattern of the breakpoints found on the way. Classes that share no prefix with any pattern are rejected
+ * after at most as many steps as their name is long.
+ *
+ * The trie is rebuilt for every breakpoint added or removed, and then published as a whole, so matching needs no locks.
+ */
+public class BreakpointPatterns {
+	private static class Node {
+		private final Map<Character, Node> children = new HashMap<Character, Node>();
+		private final List<Breakpoint> breakpoints = new ArrayList<Breakpoint>();
+	}
+
+	private final List<Breakpoint> all = new ArrayList<Breakpoint>();
+	private volatile Node root;
+
+	public synchronized void add(Breakpoint breakpoint) {
+		all.add(breakpoint);
+		rebuild();
+	}
+
+	public synchronized void remove(Breakpoint breakpoint) {
+		all.remove(breakpoint);
+		rebuild();
+	}
+
+	private void rebuild() {
+		if (all.isEmpty()) {
+			root = null;
+			return;
+		}
+		Node newRoot = new Node();
+		for (Breakpoint b : all) {
+			Node node = newRoot;
+			for (char c : b.getClassPrefix().toCharArray()) {
+				Node child = node.children.get(c);
+				if (child == null) {
+					child = new Node();
+					node.children.put(c, child);
+				}
+				node = child;
+			}
+			node.breakpoints.add(b);
+		}
+		root = newRoot;
+	}
+
+	public boolean isEmpty() {
+		return root == null;
+	}
+
+	/**
+	 * The pattern breakpoints whose class pattern matches the given internal class name.
+	 */
+	public List<Breakpoint> match(String internalName) {
+		Node node = root;
+		List<Breakpoint> result = null;
+		for (int i = 0; node != null; i++) {
+			for (Breakpoint breakpoint : node.breakpoints) {
+				if (breakpoint.matchesClass(internalName)) {
+					if (result == null) {
+						result = new ArrayList<Breakpoint>();
+					}
+					result.add(breakpoint);
+				}
+			}
+			if (i == internalName.length()) {
+				break;
+			}
+			node = node.children.get(internalName.charAt(i));
+		}
+		return result != null ? result : Collections.<Breakpoint>emptyList();
+	}
+}
@@ -0,0 +1,84 @@
+package nu.borrel.tools.debugger.agent;
+
+/**
+ * Per-thread slot buffer that the injected breakpoint code writes local variables into.
+ *
+ * Slots are the local variable indexes of the instrumented method, primitives go into {@link #primitives}
+ * (floats and doubles as their raw bits), references into {@link #references}. The buffer is reused for
+ * every hit on the owning thread, so a hit does not allocate until the snapshot is published.
+ */
+public final class CaptureBuffer {
+	private static final int INITIAL_SIZE = 16;
+
+	private static final ThreadLocal<CaptureBuffer> buffers = new ThreadLocal<CaptureBuffer>() {
+		@Override
+		protected CaptureBuffer initialValue() {
+			return new CaptureBuffer(INITIAL_SIZE);
+		}
+	};
+
+	private long[] primitives;
+	private Object[] references;
+	private boolean busy;
+
+	private CaptureBuffer(int size) {
+		this.primitives = new long[size];
+		this.references = new Object[size];
+	}
+
+	// entrypoint, called from the injected code
+	public static CaptureBuffer acquire(int size) {
+		CaptureBuffer buffer = buffers.get();
+		if (buffer.busy) {
+			// A breakpoint got hit while publishing another one on this thread (toString() of a local, for instance).
+			buffer = new CaptureBuffer(size);
+		} else if (buffer.primitives.length < size) {
+			int newSize = Math.max(size, buffer.primitives.length * 2);
+			buffer.primitives = new long[newSize];
+			buffer.references = new Object[newSize];
+		}
+		buffer.busy = true;
+		return buffer;
+	}
+
+	public CaptureBuffer putInt(int slot, int value) {
+		primitives[slot] = value;
+		return this;
+	}
+
+	public CaptureBuffer putLong(int slot, long value) {
+		primitives[slot] = value;
+		return this;
+	}
+
+	public CaptureBuffer putFloat(int slot, float value) {
+		primitives[slot] = Float.floatToRawIntBits(value);
+		return this;
+	}
+
+	public CaptureBuffer putDouble(int slot, double value) {
+		primitives[slot] = Double.doubleToRawLongBits(value);
+		return this;
+	}
+
+	public CaptureBuffer putObject(int slot, Object value) {
+		references[slot] = value;
+		return this;
+	}
+
+	public long getPrimitive(int slot) {
+		return primitives[slot];
+	}
+
+	public Object getReference(int slot) {
+		return references[slot];
+	}
+
+	public void release() {
+		// Don't keep application objects reachable from the thread.
+		for (int i = 0; i < references.length; i++) {
+			references[i] = null;
+		}
+		busy = false;
+	}
+}
@@ -0,0 +1,93 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Describes which local variable lives in which {@link CaptureBuffer} slot for one injected breakpoint.
+ *
+ * Layouts are registered while transforming, and the injected code only refers to them by id.
+ */
+public final class CaptureLayout {
+	private static final Map<String, CaptureLayout> layoutsByKey = new HashMap<String, CaptureLayout>();
+	private static volatile CaptureLayout[] layouts = new CaptureLayout[0];
+
+	private final int id;
+	private final Breakpoint breakpoint;
+	private final String className;
+	private final String methodName;
+	private final String[] names;
+	private final String[] descs;
+	private final int[] slots;
+	private final int size;
+
+	private CaptureLayout(int id, Breakpoint breakpoint, String className, String methodName, String[] names, String[] descs, int[] slots) {
+		this.id = id;
+		this.breakpoint = breakpoint;
+		this.className = className;
+		this.methodName = methodName;
+		this.names = names;
+		this.descs = descs;
+		this.slots = slots;
+		int size = 0;
+		for (int i = 0; i < slots.length; i++) {
+			size = Math.max(size, slots[i] + 1);
+		}
+		this.size = size;
+	}
+
+	public static synchronized CaptureLayout register(Breakpoint breakpoint, String className, String methodName, String[] names, String[] descs, int[] slots) {
+		// Retransforming the same class yields the same layout again, reuse it rather than growing the table.
+		String key = breakpoint.getId() + "/" + className + "/" + methodName + "/" + Arrays.toString(names) + Arrays.toString(descs) + Arrays.toString(slots);
+		CaptureLayout layout = layoutsByKey.get(key);
+		if (layout == null) {
+			CaptureLayout[] newLayouts = Arrays.copyOf(layouts, layouts.length + 1);
+			layout = new CaptureLayout(layouts.length, breakpoint, className, methodName, names, descs, slots);
+			newLayouts[layout.id] = layout;
+			layouts = newLayouts;
+			layoutsByKey.put(key, layout);
+		}
+		return layout;
+	}
+
+	public static CaptureLayout get(int id) {
+		return layouts[id];
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public Breakpoint getBreakpoint() {
+		return breakpoint;
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	public String getMethodName() {
+		return methodName;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getVariableCount() {
+		return names.length;
+	}
+
+	public String getName(int variable) {
+		return names[variable];
+	}
+
+	public String getDesc(int variable) {
+		return descs[variable];
+	}
+
+	public int getSlot(int variable) {
+		return slots[variable];
+	}
+}
@@ -0,0 +1,57 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The stack of a breakpoint hit in its cheap, captured form.
+ *
+ * Turning the frames into {@link StackTraceElement}s is the expensive part, and only happens when someone asks
+ * for them through {@link #getStackTrace()}.
+ */
+public final class CapturedStack implements Serializable {
+	private static final long serialVersionUID = DebuggerAgent.VERSION;
+
+	// Either a Throwable holding the VM backtrace, or StackWalker frames.
+	private transient Object frames;
+	private final int skip;
+	private final int depth;
+	private StackTraceElement[] stackTrace;
+
+	CapturedStack(Object frames, int skip, int depth) {
+		this.frames = frames;
+		this.skip = skip;
+		this.depth = depth;
+	}
+
+	/**
+	 * A stack that arrived already resolved, for instance through the {@link EventStream}.
+	 */
+	CapturedStack(StackTraceElement[] stackTrace) {
+		this.skip = 0;
+		this.depth = stackTrace.length;
+		this.stackTrace = stackTrace;
+	}
+
+	public synchronized StackTraceElement[] getStackTrace() {
+		if (stackTrace == null) {
+			StackTraceElement[] elements;
+			if (frames instanceof Throwable) {
+				StackTraceElement[] trace = ((Throwable) frames).getStackTrace();
+				int from = Math.min(skip, trace.length);
+				elements = Arrays.copyOfRange(trace, from, from + Math.min(depth, trace.length - from));
+			} else {
+				// Already skipped and limited while walking.
+				elements = StackCapture.toStackTraceElements((Object[]) frames);
+			}
+			stackTrace = elements;
+			frames = null;
+		}
+		return stackTrace;
+	}
+
+	private synchronized void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+		getStackTrace();
+		out.defaultWriteObject();
+	}
+}
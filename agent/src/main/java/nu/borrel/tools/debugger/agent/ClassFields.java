@@ -0,0 +1,153 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * The instance fields of a class and its superclasses, with accessors for reading them from an object. Built once per
+ * class, the first time an object of the class is captured.
+ *
+ * Fields are made accessible once, and then read through the primitive getters of {@link Field}, so primitives are not
+ * boxed. Fields that may not be made accessible, for instance of JDK classes on JVMs with modules, are left out.
+ */
+final class ClassFields {
+	// Field instances refer to their class: values are held softly so they don't keep the classes alive.
+	private static final Map<Class<?>, SoftReference<ClassFields>> CACHE = new WeakHashMap<Class<?>, SoftReference<ClassFields>>();
+
+	private final String[] names;
+	// The descriptors of the field types, only the first character matters.
+	private final char[] types;
+	private final Field[] fields;
+
+	private ClassFields(String[] names, char[] types, Field[] fields) {
+		this.names = names;
+		this.types = types;
+		this.fields = fields;
+	}
+
+	/**
+	 * The fields of the class if they were collected before, <code>null</code> otherwise.
+	 */
+	public static ClassFields getIfPresent(Class<?> c) {
+		synchronized (CACHE) {
+			SoftReference<ClassFields> reference = CACHE.get(c);
+			return reference != null ? reference.get() : null;
+		}
+	}
+
+	public static ClassFields get(Class<?> c) {
+		synchronized (CACHE) {
+			SoftReference<ClassFields> reference = CACHE.get(c);
+			ClassFields classFields = reference != null ? reference.get() : null;
+			if (classFields == null) {
+				classFields = create(c);
+				CACHE.put(c, new SoftReference<ClassFields>(classFields));
+			}
+			return classFields;
+		}
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * The name of the field. A field hidden by a field of the same name in a subclass is named after its class, for
+	 * instance <code>Base.name</code>.
+	 */
+	public String getName(int i) {
+		return names[i];
+	}
+
+	/**
+	 * The type as the first character of the field descriptor: one of <code>ZBCSIJFD</code>, or <code>L</code> for
+	 * references.
+	 */
+	public char getType(int i) {
+		return types[i];
+	}
+
+	/**
+	 * The value of a primitive field, in the raw form of the {@link CaptureBuffer}: floats and doubles as their bits.
+	 */
+	public long getPrimitive(Object o, int i) throws IllegalAccessException {
+		Field field = fields[i];
+		switch (types[i]) {
+		case 'Z':
+			return field.getBoolean(o) ? 1 : 0;
+		case 'B':
+			return field.getByte(o);
+		case 'C':
+			return field.getChar(o);
+		case 'S':
+			return field.getShort(o);
+		case 'I':
+			return field.getInt(o);
+		case 'J':
+			return field.getLong(o);
+		case 'F':
+			return Float.floatToRawIntBits(field.getFloat(o));
+		case 'D':
+			return Double.doubleToRawLongBits(field.getDouble(o));
+		}
+		throw new IllegalArgumentException("Not a primitive field: " + names[i]);
+	}
+
+	public Object getReference(Object o, int i) throws IllegalAccessException {
+		return fields[i].get(o);
+	}
+
+	/**
+	 * Collects the fields, the class's own first, leaving out the fields we may not read.
+	 */
+	private static ClassFields create(Class<?> c) {
+		List<Field> fields = new ArrayList<Field>();
+		List<String> names = new ArrayList<String>();
+		StringBuilder types = new StringBuilder();
+		Set<String> seen = new HashSet<String>();
+		for (Class<?> k = c; k != null && k != Object.class; k = k.getSuperclass()) {
+			for (Field field : k.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+					continue;
+				}
+				try {
+					field.setAccessible(true);
+				} catch (RuntimeException e) {
+					// Not allowed by a security manager, or on newer JVMs by the module of the class.
+					continue;
+				}
+				fields.add(field);
+				names.add(seen.add(field.getName()) ? field.getName() : k.getSimpleName() + "." + field.getName());
+				types.append(field.getType().isPrimitive() ? primitiveType(field.getType()) : 'L');
+			}
+		}
+		return new ClassFields(names.toArray(new String[names.size()]), types.toString().toCharArray(), fields.toArray(new Field[fields.size()]));
+	}
+
+	private static char primitiveType(Class<?> type) {
+		if (type == boolean.class) {
+			return 'Z';
+		} else if (type == byte.class) {
+			return 'B';
+		} else if (type == char.class) {
+			return 'C';
+		} else if (type == short.class) {
+			return 'S';
+		} else if (type == int.class) {
+			return 'I';
+		} else if (type == long.class) {
+			return 'J';
+		} else if (type == float.class) {
+			return 'F';
+		} else {
+			return 'D';
+		}
+	}
+}
@@ -1,12 +1,17 @@
 package nu.borrel.tools.debugger.agent;
 
-import java.io.Serializable;
+import java.io.File;
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
-import java.lang.instrument.UnmodifiableClassException;
 import java.lang.management.ManagementFactory;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.management.InstanceAlreadyExistsException;
 import javax.management.MBeanNotificationInfo;
@@ -18,15 +23,46 @@ import javax.management.NotificationBroadcasterSupport;
 import javax.management.NotificationEmitter;
 import javax.management.ObjectName;
 
-import nu.borrel.tools.debugger.agent.asm.BreakpointClassFileTransformer;
+import nu.borrel.tools.debugger.agent.asm.ClassDumper;
+import nu.borrel.tools.debugger.agent.asm.Condition;
+import nu.borrel.tools.debugger.agent.asm.TransformCache;
+import nu.borrel.tools.debugger.agent.asm.TransformOptions;
+import nu.borrel.tools.debugger.agent.asm.TypeHierarchy;
 
 
 public class DebuggerAgent extends NotificationBroadcasterSupport implements DebuggerAgentMBean, NotificationEmitter {
 	public static long VERSION = 1;
 	public static DebuggerAgent instance;
 	
+	private static final int QUEUE_CAPACITY = 4096;
+	private static final int DEFAULT_MAX_BATCH_SIZE = 256;
+	private static final long DEFAULT_MAX_BATCH_DELAY = 100;
+	private static final int TYPE_HIERARCHY_CAPACITY = 4096;
+	private static final int MAX_SNAPSHOT_SIZE = 1024 * 1024;
+	private static final long DEFAULT_TRANSFORM_CACHE_SIZE = 16 * 1024 * 1024;
+	// Below this many classes the JVM's own transform calls are fast enough
+	private static final int PARALLEL_RETRANSFORM_THRESHOLD = 2;
+	
 	private final Instrumentation instrumentation;
-	private final Map<String, BreakpointClassFileTransformer> breakpoints = new HashMap<String, BreakpointClassFileTransformer>();
+	private final Map<Integer, Breakpoint> breakpointsById = new ConcurrentHashMap<Integer, Breakpoint>();
+	private final AtomicInteger nextBreakpointId = new AtomicInteger();
+	// Classes to retransform when committing, null outside of beginBreakpoints()/commitBreakpoints().
+	private Set<String> pendingClassNames;
+	// Breakpoints and traces added since beginBreakpoints(), removed again when their classes cannot be retransformed
+	private List<Breakpoint> pendingBreakpoints;
+	private List<MethodTrace> pendingTraces;
+	private final LoadedClassIndex loadedClasses = new LoadedClassIndex();
+	private final ClassDumper dumper = new ClassDumper();
+	private final TransformOptions transformOptions = new TransformOptions();
+	private final TypeHierarchy typeHierarchy = new TypeHierarchy(TYPE_HIERARCHY_CAPACITY);
+	private final TransformCache transformCache = new TransformCache(DEFAULT_TRANSFORM_CACHE_SIZE);
+	private final DispatchingClassFileTransformer transformer = new DispatchingClassFileTransformer(loadedClasses, dumper, transformOptions, typeHierarchy, transformCache);
+	private final HitRingBuffer ringBuffer = new HitRingBuffer(QUEUE_CAPACITY);
+	// Only used by the dispatcher thread
+	private final SnapshotEncoder encoder = new SnapshotEncoder(MAX_SNAPSHOT_SIZE);
+	private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private volatile long maxBatchDelay = DEFAULT_MAX_BATCH_DELAY;
+	private volatile EventStream eventStream;
 	
 	public DebuggerAgent(Instrumentation instrumentation) {
 		this.instrumentation = instrumentation;
@@ -37,31 +73,226 @@ public class DebuggerAgent extends NotificationBroadcasterSupport implements Deb
 		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
 		
 		instance = new DebuggerAgent(instrumentation);
+		// Observe new classes before taking the snapshot, so that none slip through in between.
+		instrumentation.addTransformer(instance.transformer, true);
+		instance.loadedClasses.addAll(instrumentation.getAllLoadedClasses());
 		server.registerMBean(instance, createObjectName());
+		HitDispatcher.start(instance.ringBuffer, instance);
 	}
 
 	@Override
 	public int setBreakpoint(String className, String methodName, int pc) {
+		return setBreakpoint(className, methodName, pc, null);
+	}
+
+	@Override
+	public synchronized int setBreakpoint(String className, String methodName, int pc, String condition) {
+		Condition parsedCondition = condition != null && condition.trim().length() > 0 ? Condition.parse(condition) : null;
 		// Retransform the class to apply all breakpoints we know about.
 		// For the time being: breakpoints just dump the locals into the notification listener.
-		BreakpointClassFileTransformer transformer = breakpoints.get(className);
-		if (transformer == null) {
-			breakpoints.put(className, transformer = new BreakpointClassFileTransformer(className));
-			instrumentation.addTransformer(transformer, true);
+		Breakpoint breakpoint = new Breakpoint(nextBreakpointId.incrementAndGet(), className, methodName, pc, parsedCondition);
+		breakpointsById.put(breakpoint.getId(), breakpoint);
+		transformer.addBreakpoint(breakpoint);
+		
+		if (pendingClassNames != null) {
+			pendingClassNames.add(className);
+			pendingBreakpoints.add(breakpoint);
+		} else {
+			retransform(Collections.singleton(className), Collections.singletonList(breakpoint), Collections.<MethodTrace>emptyList());
 		}
-		transformer.addBreakpoint(methodName, pc);
+		return breakpoint.getId();
+	}
+
+	@Override
+	public synchronized int setPatternBreakpoint(String classPattern, String methodPattern, String annotation, String condition) {
+		Condition parsedCondition = condition != null && condition.trim().length() > 0 ? Condition.parse(condition) : null;
+		String parsedAnnotation = annotation != null && annotation.trim().length() > 0 ? annotation.trim() : null;
+		Breakpoint breakpoint = new Breakpoint(nextBreakpointId.incrementAndGet(), classPattern, methodPattern, parsedCondition, parsedAnnotation);
+		breakpointsById.put(breakpoint.getId(), breakpoint);
+		Set<String> classNames = transformer.addPatternBreakpoint(breakpoint, loadedClasses.getClassNames());
+		
+		if (pendingClassNames != null) {
+			pendingClassNames.addAll(classNames);
+			pendingBreakpoints.add(breakpoint);
+		} else {
+			retransform(classNames, Collections.singletonList(breakpoint), Collections.<MethodTrace>emptyList());
+		}
+		return breakpoint.getId();
+	}
+
+	@Override
+	public synchronized int setMethodTrace(String className, String methodName) {
+		MethodTrace trace = MethodTrace.create(className, methodName);
+		transformer.addTrace(trace);
 		
-		for (Class<?> loadedClass : instrumentation.getAllLoadedClasses()) {
-			if (className.equals(loadedClass.getName())) {
-				System.out.println("Retransforming " + loadedClass);
-				try {
-					instrumentation.retransformClasses(loadedClass);
-				} catch (UnmodifiableClassException e) {
-					System.out.println("Cannot set breakpoint in " + loadedClass + ": " + e);
+		if (pendingClassNames != null) {
+			pendingClassNames.add(className);
+			pendingTraces.add(trace);
+		} else {
+			retransform(Collections.singleton(className), Collections.<Breakpoint>emptyList(), Collections.singletonList(trace));
+		}
+		return trace.getId();
+	}
+
+	@Override
+	public String getMethodTraceReport(int traceId) {
+		return MethodTrace.get(traceId).report();
+	}
+
+	@Override
+	public void resetMethodTrace(int traceId) {
+		MethodTrace.get(traceId).reset();
+	}
+
+	@Override
+	public synchronized void beginBreakpoints() {
+		if (pendingClassNames == null) {
+			pendingClassNames = new HashSet<String>();
+			pendingBreakpoints = new ArrayList<Breakpoint>();
+			pendingTraces = new ArrayList<MethodTrace>();
+		}
+	}
+
+	@Override
+	public synchronized int commitBreakpoints() {
+		if (pendingClassNames == null) {
+			return 0;
+		}
+		try {
+			return retransform(pendingClassNames, pendingBreakpoints, pendingTraces);
+		} finally {
+			pendingClassNames = null;
+			pendingBreakpoints = null;
+			pendingTraces = null;
+		}
+	}
+
+	/**
+	 * Retransforms all loaded classes with the given names in one go, returning how many there were.
+	 * Classes that are not loaded yet get their breakpoints when they load.
+	 *
+	 * When the JVM rejects the classes it keeps the old ones, and the given breakpoints and traces are removed again:
+	 * left in place they would break every later retransformation of the same classes.
+	 *
+	 * @throws IllegalStateException when the classes cannot be retransformed
+	 */
+	private int retransform(Set<String> classNames, List<Breakpoint> breakpoints, List<MethodTrace> traces) {
+		List<Class<?>> classes = new ArrayList<Class<?>>();
+		for (String className : classNames) {
+			for (Class<?> loadedClass : loadedClasses.get(className)) {
+				if (instrumentation.isModifiableClass(loadedClass)) {
+					classes.add(loadedClass);
+				} else {
+					System.out.println("Cannot set breakpoint in " + loadedClass + ": not modifiable");
 				}
 			}
 		}
-		return /* FIXME */ 0;
+		if (classes.isEmpty()) {
+			return 0;
+		}
+		
+		System.out.println("Retransforming " + classes);
+		if (classes.size() >= PARALLEL_RETRANSFORM_THRESHOLD) {
+			transformer.precompute(classes);
+		}
+		try {
+			instrumentation.retransformClasses(classes.toArray(new Class<?>[classes.size()]));
+		} catch (Exception e) {
+			// Not modifiable after all, or the instrumented class changed its shape
+			throw rollBack(classes, breakpoints, traces, e);
+		} catch (LinkageError e) {
+			// VerifyError or ClassFormatError for broken instrumented code
+			throw rollBack(classes, breakpoints, traces, e);
+		}
+		return classes.size();
+	}
+
+	private IllegalStateException rollBack(List<Class<?>> classes, List<Breakpoint> breakpoints, List<MethodTrace> traces, Throwable cause) {
+		for (Breakpoint breakpoint : breakpoints) {
+			breakpointsById.remove(breakpoint.getId());
+			transformer.removeBreakpoint(breakpoint);
+		}
+		for (MethodTrace trace : traces) {
+			transformer.removeTrace(trace);
+		}
+		System.out.println("Cannot set breakpoints in " + classes + ", removed " + breakpoints + " " + traces + ": " + cause);
+		return new IllegalStateException("Cannot retransform " + classes + ": " + cause);
+	}
+	
+	@Override
+	public void setStackCapture(int breakpointId, String mode, int depth) {
+		getBreakpoint(breakpointId).setStackCapture(StackCapture.create(StackCapture.Mode.valueOf(mode.toUpperCase()), depth));
+	}
+
+	@Override
+	public String getStackCapture(int breakpointId) {
+		return getBreakpoint(breakpointId).getStackCapture().toString();
+	}
+
+	@Override
+	public void setSnapshotLimits(int breakpointId, int maxDepth, int maxElements, int maxFields, int maxStringLength, int maxBytes, long maxTimeMicros) {
+		getBreakpoint(breakpointId).setSnapshotLimits(new SnapshotLimits(maxDepth, maxElements, maxFields, maxStringLength, maxBytes, maxTimeMicros));
+	}
+
+	@Override
+	public String getSnapshotLimits(int breakpointId) {
+		return getBreakpoint(breakpointId).getSnapshotLimits().toString();
+	}
+
+	@Override
+	public void setAggregation(int breakpointId, boolean aggregate, boolean callers) {
+		Breakpoint breakpoint = getBreakpoint(breakpointId);
+		breakpoint.setAggregation(aggregate ? new Aggregation(breakpoint, callers) : null);
+	}
+
+	@Override
+	public String getAggregationSnapshot(int breakpointId) {
+		Aggregation aggregation = getBreakpoint(breakpointId).getAggregation();
+		if (aggregation == null) {
+			throw new IllegalArgumentException("Breakpoint " + breakpointId + " does not aggregate");
+		}
+		return aggregation.snapshot();
+	}
+
+	@Override
+	public void resetAggregation(int breakpointId) {
+		Aggregation aggregation = getBreakpoint(breakpointId).getAggregation();
+		if (aggregation != null) {
+			aggregation.reset();
+		}
+	}
+
+	@Override
+	public void setHitCount(int breakpointId, long hitCount) {
+		getBreakpoint(breakpointId).getGuard().setHitCount(hitCount);
+	}
+
+	@Override
+	public void setSampling(int breakpointId, int sampling) {
+		getBreakpoint(breakpointId).getGuard().setSampling(sampling);
+	}
+
+	@Override
+	public void setRateLimit(int breakpointId, double hitsPerSecond) {
+		getBreakpoint(breakpointId).getGuard().setRateLimit(hitsPerSecond);
+	}
+
+	@Override
+	public String getGuardState(int breakpointId) {
+		return getBreakpoint(breakpointId).getGuard().toString();
+	}
+
+	@Override
+	public long getSuppressedHitCount(int breakpointId) {
+		return getBreakpoint(breakpointId).getGuard().getSuppressedCount();
+	}
+
+	private Breakpoint getBreakpoint(int breakpointId) {
+		Breakpoint breakpoint = breakpointsById.get(breakpointId);
+		if (breakpoint == null) {
+			throw new IllegalArgumentException("No such breakpoint: " + breakpointId);
+		}
+		return breakpoint;
 	}
 	
 	public static ObjectName createObjectName() {
@@ -77,35 +308,259 @@ public class DebuggerAgent extends NotificationBroadcasterSupport implements Deb
 		return "" + VERSION;
 	}
 	
-	// entrypoint, modify the ASM stuff!!!!!!!
-	public static void breakpointHit(Object who, Map<String, Object> locals, String name, int line) {
-		instance.notifyBreakpointHit(who, locals, name, line);
+	@Override
+	public synchronized String startEventStream(int port) throws IOException {
+		if (eventStream == null) {
+			eventStream = EventStream.start(port);
+			System.out.println("Streaming events on port " + eventStream.getPort());
+		}
+		return eventStream.getToken();
+	}
+
+	@Override
+	public synchronized void stopEventStream() {
+		if (eventStream != null) {
+			eventStream.stop();
+			eventStream = null;
+		}
+	}
+
+	@Override
+	public int getEventStreamPort() {
+		EventStream stream = eventStream;
+		return stream != null ? stream.getPort() : 0;
+	}
+
+	@Override
+	public int getEventStreamClientCount() {
+		EventStream stream = eventStream;
+		return stream != null ? stream.getClientCount() : 0;
+	}
+
+	@Override
+	public long getEventStreamDroppedCount() {
+		EventStream stream = eventStream;
+		return stream != null ? stream.getDroppedCount() : 0;
+	}
+
+	@Override
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	@Override
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be positive: " + maxBatchSize);
+		}
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	@Override
+	public long getMaxBatchDelay() {
+		return maxBatchDelay;
+	}
+
+	@Override
+	public void setMaxBatchDelay(long maxBatchDelay) {
+		this.maxBatchDelay = maxBatchDelay;
+	}
+
+	@Override
+	public String getOverflowPolicy() {
+		return ringBuffer.getOverflowPolicy().name();
+	}
+
+	@Override
+	public void setOverflowPolicy(String policy) {
+		ringBuffer.setOverflowPolicy(OverflowPolicy.valueOf(policy.toUpperCase()));
+	}
+
+	@Override
+	public int getSampleRate() {
+		return ringBuffer.getSampleRate();
+	}
+
+	@Override
+	public void setSampleRate(int sampleRate) {
+		ringBuffer.setSampleRate(sampleRate);
+	}
+
+	@Override
+	public long getDroppedEventCount() {
+		return ringBuffer.getDroppedCount();
+	}
+
+	@Override
+	public int getQueuedEventCount() {
+		return ringBuffer.size();
+	}
+
+	@Override
+	public long getTransformCacheHitCount() {
+		return transformCache.getHitCount();
+	}
+
+	@Override
+	public long getTransformCacheMissCount() {
+		return transformCache.getMissCount();
+	}
+
+	@Override
+	public long getTransformCacheSize() {
+		return transformCache.getSize();
+	}
+
+	@Override
+	public long getTransformCacheMaxSize() {
+		return transformCache.getMaxSize();
+	}
+
+	@Override
+	public void setTransformCacheMaxSize(long maxSize) {
+		transformCache.setMaxSize(maxSize);
+	}
+
+	@Override
+	public boolean isComputeFrames() {
+		return transformOptions.isComputeFrames();
+	}
+
+	@Override
+	public void setComputeFrames(boolean computeFrames) {
+		transformOptions.setComputeFrames(computeFrames);
+	}
+
+	@Override
+	public boolean isDiagnosticsEnabled() {
+		return dumper.isEnabled();
+	}
+
+	@Override
+	public void setDiagnosticsEnabled(boolean enabled) {
+		dumper.setEnabled(enabled);
+	}
+
+	@Override
+	public String getDiagnosticsDirectory() {
+		return dumper.getDirectory().getAbsolutePath();
+	}
+
+	@Override
+	public void setDiagnosticsDirectory(String directory) {
+		dumper.setDirectory(new File(directory));
+	}
+
+	@Override
+	public int getDiagnosticsMaxFiles() {
+		return dumper.getMaxFiles();
+	}
+
+	@Override
+	public void setDiagnosticsMaxFiles(int maxFiles) {
+		if (maxFiles < 1) {
+			throw new IllegalArgumentException("maxFiles must be positive");
+		}
+		dumper.setMaxFiles(maxFiles);
+	}
+
+	@Override
+	public long getDiagnosticsDroppedCount() {
+		return dumper.getDroppedCount();
 	}
 	
-	private void notifyBreakpointHit(Object who, Map<String, Object> locals, String name, int line) {
-		// XXX: breakpoints in Class are therefore always static :)
-		StackTraceElement[] place = Thread.currentThread().getStackTrace();
-		BreakpointNotification notification = new BreakpointNotification(this, who, name, line, Arrays.copyOfRange(place, 2, place.length));
-		if (locals != null) {
-			for (Map.Entry<String, Object> me : locals.entrySet()) {
-				Serializable v;
-				if (me.getValue() == null || me.getValue() instanceof Serializable) {
-					v = (Serializable) me.getValue();
-				} else {
-					v = me.getValue().toString();
-				}
-				
-				notification.getLocalVariables().put(me.getKey(), v);
+	// entrypoint, called before capturing anything
+	public static boolean breakpointGuard(int layoutId) {
+		return CaptureLayout.get(layoutId).getBreakpoint().getGuard().tryPass();
+	}
+	
+	// entrypoint, modify the ASM stuff!!!!!!!
+	public static void breakpointHit(CaptureBuffer buffer, Object who, int layoutId) {
+		try {
+			// XXX: breakpoints in Class are therefore always static :)
+			CaptureLayout layout = CaptureLayout.get(layoutId);
+			Aggregation aggregation = layout.getBreakpoint().getAggregation();
+			if (aggregation != null) {
+				aggregation.record(buffer, layout);
+				return;
 			}
+			CapturedStack stack = layout.getBreakpoint().getStackCapture().capture();
+			instance.ringBuffer.offer(buffer, who, layout, System.currentTimeMillis(), stack);
+		} finally {
+			buffer.release();
 		}
+	}
+	
+	// Called by traced methods on every return
+	public static void traceExit(Object returnValue, long startNanos, int traceId) {
+		MethodTrace.get(traceId).exit(returnValue, startNanos);
+	}
+
+	// Called by traced methods for every exception leaving them
+	public static void traceException(Throwable t, long startNanos, int traceId) {
+		MethodTrace.get(traceId).exception(t, startNanos);
+	}
+	
+	// Called on the dispatcher thread.
+	void publish(HitEvent event) {
+		CaptureLayout layout = event.getLayout();
+		encode(event);
+		BreakpointNotification notification = new BreakpointNotification(this, layout.getClassName(), layout.getMethodName(), layout.getBreakpoint().getLine(), event.getTimestamp(), event.getStack(), encoder.end());
 		sendNotification(notification);
 	}
 	
+	// Called on the dispatcher thread.
+	void addToBatch(HitEvent event, BreakpointBatchNotification.Builder batch) {
+		CaptureLayout layout = event.getLayout();
+		StackTraceElement[] stack = event.getStack() != null ? event.getStack().getStackTrace() : new StackTraceElement[0];
+		batch.addHit(layout.getClassName(), layout.getMethodName(), layout.getBreakpoint().getLine(), event.getTimestamp(), stack);
+		encode(event);
+		batch.setSnapshot(encoder.endBuffer());
+	}
+	
+	/**
+	 * Whether hits go to the event stream rather than into notifications.
+	 */
+	boolean isStreaming() {
+		EventStream stream = eventStream;
+		return stream != null && stream.hasClients();
+	}
+
+	// Called on the dispatcher thread.
+	void stream(HitEvent event) throws IOException {
+		EventStream stream = eventStream;
+		if (stream == null) {
+			// Stopped in the meantime
+			publish(event);
+			return;
+		}
+		CaptureLayout layout = event.getLayout();
+		StackTraceElement[] stack = event.getStack() != null ? event.getStack().getStackTrace() : new StackTraceElement[0];
+		encode(event);
+		stream.send(layout.getClassName(), layout.getMethodName(), layout.getBreakpoint().getLine(), event.getTimestamp(), stack, encoder.endBuffer());
+	}
+	
+	private void encode(HitEvent event) {
+		CaptureLayout layout = event.getLayout();
+		encoder.begin(layout.getBreakpoint().getSnapshotLimits());
+		for (int i = 0; i < layout.getVariableCount(); i++) {
+			int slot = layout.getSlot(i);
+			encoder.addVariable(layout.getName(i), layout.getDesc(i), event.getPrimitive(slot), event.getReference(slot));
+		}
+	}
+	
+	// Called on the dispatcher thread.
+	void sendBatch(BreakpointBatchNotification.Builder batch) {
+		sendNotification(batch.build(this));
+	}
+	
 	@Override 
 	public MBeanNotificationInfo[] getNotificationInfo() {
 		String name = BreakpointNotification.class.getName();
 		String description = "Breakpoint Hit";
 		MBeanNotificationInfo info = new MBeanNotificationInfo(new String[] { name }, name, description);
-		return new MBeanNotificationInfo[] { info };
+		String batchName = BreakpointBatchNotification.class.getName();
+		MBeanNotificationInfo batchInfo = new MBeanNotificationInfo(new String[] { batchName }, batchName, "Breakpoint Hits");
+		return new MBeanNotificationInfo[] { info, batchInfo };
 	}
 }
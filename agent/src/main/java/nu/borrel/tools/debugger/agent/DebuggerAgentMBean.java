@@ -1,7 +1,200 @@
 package nu.borrel.tools.debugger.agent;
 
+import java.io.IOException;
+
 public interface DebuggerAgentMBean {
+	/**
+	 * Sets a breakpoint on the given line of the method, or the next line with code. Without a descriptor
+	 * (<code>name(desc)</code>) in the method name the breakpoint goes to the overload whose lines contain it.
+	 * A method can have any number of breakpoints.
+	 */
 	int setBreakpoint(String className, String methodName, int pc);
 
+	/**
+	 * Sets a breakpoint that only fires when the condition holds, see {@link nu.borrel.tools.debugger.agent.asm.Condition}
+	 * for the syntax. The condition is compiled into the instrumented method.
+	 */
+	int setBreakpoint(String className, String methodName, int pc, String condition);
+
+	/**
+	 * Sets a breakpoint at the first line of all methods matching <code>methodPattern</code> in all classes matching
+	 * <code>classPattern</code>, now and in classes loaded later. In both patterns <code>*</code> matches any part of
+	 * a name, in class patterns <code>**</code> also matches across packages, for instance
+	 * <code>com.example.**.*Repository</code> and <code>find*</code>.
+	 * 
+	 * @param annotation if not empty: only classes annotated with this annotation
+	 * @param condition if not empty: the condition, as for {@link #setBreakpoint(String, String, int, String)}
+	 */
+	int setPatternBreakpoint(String classPattern, String methodPattern, String annotation, String condition);
+
+	/**
+	 * Traces the method: the latency of every call, the exceptions thrown and the last return value are aggregated in
+	 * the agent, and read with {@link #getMethodTraceReport(int)}. As for breakpoints, a method name with descriptor
+	 * traces a single overload.
+	 * 
+	 * @return the id of the trace
+	 */
+	int setMethodTrace(String className, String methodName);
+
+	String getMethodTraceReport(int traceId);
+
+	void resetMethodTrace(int traceId);
+
+	/**
+	 * Defers the retransformation for breakpoints and traces set from now on until {@link #commitBreakpoints()}.
+	 */
+	void beginBreakpoints();
+
+	/**
+	 * Retransforms all classes that got breakpoints since {@link #beginBreakpoints()} in a single call, and returns the
+	 * number of classes retransformed.
+	 */
+	int commitBreakpoints();
+
+	/**
+	 * Configures how much of the stack the breakpoint records: <code>OFF</code>, <code>TOP</code> with the given
+	 * number of frames, or <code>FULL</code>.
+	 */
+	void setStackCapture(int breakpointId, String mode, int depth);
+
+	String getStackCapture(int breakpointId);
+
+	/**
+	 * Bounds what the breakpoint captures of each hit: how deep objects, collections, maps and arrays are followed,
+	 * the number of elements, fields and characters taken from each, and the size and encoding time of the whole.
+	 */
+	void setSnapshotLimits(int breakpointId, int maxDepth, int maxElements, int maxFields, int maxStringLength, int maxBytes, long maxTimeMicros);
+
+	String getSnapshotLimits(int breakpointId);
+
+	/**
+	 * With <code>aggregate</code> the hits of the breakpoint are no longer sent, but summarized in the agent:
+	 * distributions of numeric locals, and the most frequent values of strings, enums and booleans. With
+	 * <code>callers</code> the callers of the method are counted too, which costs a short stack walk per hit.
+	 * Switching aggregation on again starts from scratch.
+	 */
+	void setAggregation(int breakpointId, boolean aggregate, boolean callers);
+
+	String getAggregationSnapshot(int breakpointId);
+
+	void resetAggregation(int breakpointId);
+
+	/**
+	 * Only fire on the <code>hitCount</code>-th hit (counting from now) that satisfies the condition, 0 to disable.
+	 */
+	void setHitCount(int breakpointId, long hitCount);
+
+	/**
+	 * Only fire on 1 in <code>sampling</code> hits, 0 to disable.
+	 */
+	void setSampling(int breakpointId, int sampling);
+
+	/**
+	 * Fire at most <code>hitsPerSecond</code> times per second, 0 to disable.
+	 */
+	void setRateLimit(int breakpointId, double hitsPerSecond);
+
+	String getGuardState(int breakpointId);
+
+	long getSuppressedHitCount(int breakpointId);
+
 	String getVersion();
+
+	/**
+	 * Starts streaming breakpoint hits over a socket on the loopback interface, see {@link EventStream}. While a
+	 * client is connected to the stream hits are sent there instead of as notifications.
+	 * 
+	 * @param port the port to listen on, 0 for any free port, see {@link #getEventStreamPort()} for the actual one
+	 * @return the token clients must send first, also when the stream was running already
+	 */
+	String startEventStream(int port) throws IOException;
+
+	void stopEventStream();
+
+	/**
+	 * The port of the event stream, 0 when it is not running.
+	 */
+	int getEventStreamPort();
+
+	int getEventStreamClientCount();
+
+	/**
+	 * The number of hits not sent to a client of the event stream because it fell behind.
+	 */
+	long getEventStreamDroppedCount();
+
+	/**
+	 * The number of hits after which a {@link BreakpointBatchNotification} is sent. With 1 every hit is sent as its
+	 * own {@link BreakpointNotification}.
+	 */
+	int getMaxBatchSize();
+
+	void setMaxBatchSize(int maxBatchSize);
+
+	/**
+	 * Milliseconds a hit may wait for its batch to fill up.
+	 */
+	long getMaxBatchDelay();
+
+	void setMaxBatchDelay(long maxBatchDelay);
+
+	/**
+	 * One of the {@link OverflowPolicy} names, applied when breakpoint hits arrive faster than they can be delivered.
+	 */
+	String getOverflowPolicy();
+
+	void setOverflowPolicy(String policy);
+
+	int getSampleRate();
+
+	void setSampleRate(int sampleRate);
+
+	long getDroppedEventCount();
+
+	int getQueuedEventCount();
+
+	long getTransformCacheHitCount();
+
+	long getTransformCacheMissCount();
+
+	/**
+	 * Approximate number of bytes held by the cache of instrumented classes.
+	 */
+	long getTransformCacheSize();
+
+	/**
+	 * Upper bound for {@link #getTransformCacheSize()}, 0 disables the cache.
+	 */
+	long getTransformCacheMaxSize();
+
+	void setTransformCacheMaxSize(long maxSize);
+
+	/**
+	 * When enabled the stack map frames of instrumented methods are recomputed from scratch, instead of only adding the
+	 * frames for the injected code. Slower, but a fallback in case the added frames are rejected.
+	 */
+	boolean isComputeFrames();
+
+	void setComputeFrames(boolean computeFrames);
+
+	/**
+	 * When enabled every transformed class is written, together with a listing of its bytecode, into the diagnostics
+	 * directory.
+	 */
+	boolean isDiagnosticsEnabled();
+
+	void setDiagnosticsEnabled(boolean enabled);
+
+	String getDiagnosticsDirectory();
+
+	void setDiagnosticsDirectory(String directory);
+
+	/**
+	 * The number of files kept in the diagnostics directory, older ones are deleted.
+	 */
+	int getDiagnosticsMaxFiles();
+
+	void setDiagnosticsMaxFiles(int maxFiles);
+
+	long getDiagnosticsDroppedCount();
 }
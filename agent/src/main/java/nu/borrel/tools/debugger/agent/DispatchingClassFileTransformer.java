@@ -0,0 +1,233 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nu.borrel.tools.debugger.agent.asm.BreakpointClassFileTransformer;
+import nu.borrel.tools.debugger.agent.asm.ClassDumper;
+import nu.borrel.tools.debugger.agent.asm.TransformCache;
+import nu.borrel.tools.debugger.agent.asm.TransformOptions;
+import nu.borrel.tools.debugger.agent.asm.TypeHierarchy;
+
+/**
+ * The one transformer the agent registers.
+ *
+ * It records newly loaded classes in the {@link LoadedClassIndex}, and hands classes with breakpoints to their
+ * {@link BreakpointClassFileTransformer}. For every other class that is a single hash lookup on the name, plus a walk
+ * through the {@link BreakpointPatterns} when there are pattern breakpoints.
+ */
+public class DispatchingClassFileTransformer implements ClassFileTransformer {
+	// Pattern breakpoints never apply to the agent itself
+	private static final String AGENT_PACKAGE = DispatchingClassFileTransformer.class.getPackage().getName().replace('.', '/') + "/";
+
+	private final LoadedClassIndex loadedClasses;
+	private final ClassDumper dumper;
+	private final TransformOptions options;
+	private final TypeHierarchy hierarchy;
+	private final TransformCache cache;
+	// By internal name
+	private final ConcurrentMap<String, BreakpointClassFileTransformer> transformers = new ConcurrentHashMap<String, BreakpointClassFileTransformer>();
+	private final BreakpointPatterns patterns = new BreakpointPatterns();
+	private ExecutorService executor;
+
+	public DispatchingClassFileTransformer(LoadedClassIndex loadedClasses, ClassDumper dumper, TransformOptions options, TypeHierarchy hierarchy, TransformCache cache) {
+		this.loadedClasses = loadedClasses;
+		this.dumper = dumper;
+		this.options = options;
+		this.hierarchy = hierarchy;
+		this.cache = cache;
+	}
+
+	@Override
+	public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+		if (className == null) {
+			return null;
+		}
+		if (classBeingRedefined == null) {
+			loadedClasses.classLoaded(className, loader);
+		}
+		BreakpointClassFileTransformer transformer = transformers.get(className);
+		if (transformer == null) {
+			if (patterns.isEmpty() || className.startsWith(AGENT_PACKAGE) || patterns.match(className).isEmpty()) {
+				return null;
+			}
+			transformer = createTransformer(className);
+		}
+		byte[] bytes = transformer.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+		if (bytes == null && transformer.hasOnlyPatternBreakpoints()) {
+			// The patterns matched the class, but none of its methods: forget it, rather than keeping a transformer
+			// for every class a broad pattern matches.
+			dropTransformer(className, transformer);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Adds the breakpoint, which must not be a pattern breakpoint, to its class.
+	 */
+	public synchronized void addBreakpoint(Breakpoint breakpoint) {
+		getTransformer(breakpoint.getClassName()).addBreakpoint(breakpoint);
+	}
+
+	public synchronized void addTrace(MethodTrace trace) {
+		getTransformer(trace.getClassName()).addTrace(trace);
+	}
+
+	public synchronized void removeTrace(MethodTrace trace) {
+		getTransformer(trace.getClassName()).removeTrace(trace);
+	}
+
+	/**
+	 * Synchronized with the methods adding breakpoints and traces, so that none is added to a dropped transformer.
+	 */
+	private synchronized void dropTransformer(String internalName, BreakpointClassFileTransformer transformer) {
+		if (transformer.hasOnlyPatternBreakpoints()) {
+			transformers.remove(internalName, transformer);
+		}
+	}
+
+	/**
+	 * The transformer for the class with the given binary name, created if needed.
+	 */
+	private BreakpointClassFileTransformer getTransformer(String className) {
+		String internalName = className.replace('.', '/');
+		BreakpointClassFileTransformer transformer = transformers.get(internalName);
+		if (transformer == null) {
+			transformer = createTransformer(internalName);
+		}
+		return transformer;
+	}
+
+	boolean hasTransformer(String internalName) {
+		return transformers.containsKey(internalName);
+	}
+
+	/**
+	 * Creates the transformer for the class, with the pattern breakpoints that match it.
+	 * Synchronized with {@link #addPatternBreakpoint}, so that a new transformer cannot miss a pattern.
+	 */
+	private synchronized BreakpointClassFileTransformer createTransformer(String internalName) {
+		BreakpointClassFileTransformer transformer = transformers.get(internalName);
+		if (transformer == null) {
+			transformer = new BreakpointClassFileTransformer(internalName, dumper, options, hierarchy, cache);
+			if (!internalName.startsWith(AGENT_PACKAGE)) {
+				for (Breakpoint breakpoint : patterns.match(internalName)) {
+					transformer.addBreakpoint(breakpoint);
+				}
+			}
+			transformers.put(internalName, transformer);
+		}
+		return transformer;
+	}
+
+	/**
+	 * Adds the pattern breakpoint to all classes that match it now, and all classes loaded later.
+	 * 
+	 * @param loadedClassNames the binary names of the loaded classes
+	 * @return the binary names of the loaded classes that match
+	 */
+	public synchronized Set<String> addPatternBreakpoint(Breakpoint breakpoint, Collection<String> loadedClassNames) {
+		patterns.add(breakpoint);
+		String prefix = breakpoint.getClassPrefix();
+		Set<String> classNames = new HashSet<String>();
+		for (String className : loadedClassNames) {
+			String internalName = className.replace('.', '/');
+			if (internalName.startsWith(prefix) && !internalName.startsWith("[") && !internalName.startsWith(AGENT_PACKAGE) && breakpoint.matchesClass(internalName)) {
+				classNames.add(className);
+				BreakpointClassFileTransformer transformer = transformers.get(internalName);
+				if (transformer != null) {
+					transformer.addBreakpoint(breakpoint);
+				} else {
+					createTransformer(internalName);
+				}
+			}
+		}
+		// Classes with breakpoints that are not loaded (yet)
+		for (String internalName : transformers.keySet()) {
+			if (internalName.startsWith(prefix) && !internalName.startsWith(AGENT_PACKAGE) && breakpoint.matchesClass(internalName) && !classNames.contains(internalName.replace('/', '.'))) {
+				transformers.get(internalName).addBreakpoint(breakpoint);
+			}
+		}
+		return classNames;
+	}
+
+	/**
+	 * Removes the breakpoint from all classes it was added to.
+	 */
+	public synchronized void removeBreakpoint(Breakpoint breakpoint) {
+		if (breakpoint.isPattern()) {
+			patterns.remove(breakpoint);
+			for (BreakpointClassFileTransformer transformer : transformers.values()) {
+				transformer.removeBreakpoint(breakpoint);
+			}
+		} else {
+			getTransformer(breakpoint.getClassName()).removeBreakpoint(breakpoint);
+		}
+	}
+
+	/**
+	 * Instruments the given classes in parallel, starting from the class file last seen for them. When the JVM hands
+	 * the same bytes to {@link #transform} during the following retransformation, the result comes from the
+	 * {@link TransformCache}.
+	 * Classes that were never transformed are left to the retransformation itself.
+	 */
+	public void precompute(List<Class<?>> classes) {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(classes.size());
+		for (final Class<?> c : classes) {
+			final BreakpointClassFileTransformer transformer = transformers.get(c.getName().replace('.', '/'));
+			final byte[] bytes = transformer != null ? transformer.getOriginal(c.getClassLoader()) : null;
+			if (bytes == null) {
+				continue;
+			}
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					transformer.precompute(c.getClassLoader(), bytes);
+					return null;
+				}
+			});
+		}
+		if (tasks.size() < 2) {
+			return;
+		}
+		try {
+			getExecutor().invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "debugger-agent-transformer-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+			this.executor = executor;
+		}
+		return executor;
+	}
+}
@@ -0,0 +1,304 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams breakpoint hits to clients on the same machine over a loopback socket, as a cheaper alternative to JMX
+ * notifications. JMX remains the way to control the agent, including starting and stopping the stream.
+ *
+ * Any local process can connect to the port, so the client first sends the random token of the stream, the
+ * {@link #TOKEN_LENGTH} bytes of {@link #getToken()}; the agent learns about it through JMX. A connection that sends
+ * anything else is closed, and gets nothing.
+ *
+ * The agent then sends {@link #MAGIC} and the agent version, both as int. Then every hit is a frame: its length as
+ * int, the time stamp as long, class and method name (as in {@link java.io.DataOutput#writeUTF(String)}), the line as
+ * int, the number of stack frames as int followed by the frames (class, method, whether there is a file name, the
+ * file name, line), and finally the snapshot of the locals as encoded by {@link SnapshotEncoder}. All numbers are
+ * big-endian, see {@link EventStreamReader} for the reading side.
+ *
+ * Frames are built on the dispatcher thread and queued per client, the stream's own thread writes them with
+ * non-blocking I/O. When a client doesn't keep up its queue fills, and further frames for that client are dropped
+ * and counted: a slow client never holds up the dispatcher.
+ */
+public class EventStream implements Runnable {
+	public static final int MAGIC = 0x44424753;
+	public static final int TOKEN_LENGTH = 16;
+
+	private static final int MAX_QUEUED_FRAMES = 1024;
+
+	private static class Connection {
+		private final SocketChannel channel;
+		private final BlockingQueue<ByteBuffer> frames = new ArrayBlockingQueue<ByteBuffer>(MAX_QUEUED_FRAMES);
+		// The token as far as received, null once the client sent all of it
+		private ByteBuffer token = ByteBuffer.allocate(TOKEN_LENGTH);
+		// The frame being written, only used by the stream thread
+		private ByteBuffer current;
+		private SelectionKey key;
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	private final ServerSocketChannel server;
+	private final Selector selector;
+	private final byte[] token;
+	// The connections that sent the token
+	private final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final Thread thread;
+	private volatile boolean running = true;
+	// Only used by the dispatcher thread
+	private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+	private final DataOutputStream headerOut = new DataOutputStream(header);
+
+	private EventStream(ServerSocketChannel server, Selector selector) {
+		this.server = server;
+		this.selector = selector;
+		this.token = new byte[TOKEN_LENGTH];
+		new SecureRandom().nextBytes(token);
+		this.thread = new Thread(this, "debugger-agent-event-stream");
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Listens on the loopback interface.
+	 *
+	 * @param port the port, 0 for any free port
+	 */
+	public static EventStream start(int port) throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		Selector selector = null;
+		try {
+			server.socket().bind(new InetSocketAddress(InetAddress.getByName(null), port));
+			server.configureBlocking(false);
+			selector = Selector.open();
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			server.close();
+			if (selector != null) {
+				selector.close();
+			}
+			throw e;
+		}
+		EventStream stream = new EventStream(server, selector);
+		stream.thread.start();
+		return stream;
+	}
+
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * The token clients must send, as hexadecimal string.
+	 */
+	public String getToken() {
+		StringBuilder sb = new StringBuilder(TOKEN_LENGTH * 2);
+		for (byte b : token) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	public boolean hasClients() {
+		return !connections.isEmpty();
+	}
+
+	public int getClientCount() {
+		return connections.size();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Queues a hit for all clients. Called on the dispatcher thread.
+	 *
+	 * @param snapshot the encoded locals, from its position to its limit
+	 */
+	void send(String className, String methodName, int line, long timeStamp, StackTraceElement[] stack, ByteBuffer snapshot) throws IOException {
+		header.reset();
+		headerOut.writeLong(timeStamp);
+		headerOut.writeUTF(className);
+		headerOut.writeUTF(methodName);
+		headerOut.writeInt(line);
+		headerOut.writeInt(stack.length);
+		for (StackTraceElement element : stack) {
+			headerOut.writeUTF(element.getClassName());
+			headerOut.writeUTF(element.getMethodName());
+			headerOut.writeBoolean(element.getFileName() != null);
+			if (element.getFileName() != null) {
+				headerOut.writeUTF(element.getFileName());
+			}
+			headerOut.writeInt(element.getLineNumber());
+		}
+		headerOut.flush();
+
+		ByteBuffer frame = ByteBuffer.allocate(4 + header.size() + snapshot.remaining());
+		frame.putInt(frame.capacity() - 4);
+		frame.put(header.toByteArray());
+		frame.put(snapshot);
+		frame.flip();
+
+		// The clients share the content, each has its own position.
+		for (Connection connection : connections) {
+			if (!connection.frames.offer(frame.duplicate())) {
+				droppedCount.incrementAndGet();
+			}
+		}
+		selector.wakeup();
+	}
+
+	public void stop() {
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		ByteBuffer discard = ByteBuffer.allocate(256);
+		try {
+			while (running) {
+				selector.select();
+				for (SelectionKey key : selector.selectedKeys()) {
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable()) {
+						Connection connection = (Connection) key.attachment();
+						if (connection.token != null) {
+							authenticate(connection);
+						} else {
+							// Clients don't send anything after the token, reading only tells us when they are gone.
+							discard.clear();
+							if (read(connection, discard) < 0) {
+								close(connection);
+							}
+						}
+					}
+				}
+				selector.selectedKeys().clear();
+				for (Connection connection : connections) {
+					write(connection);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Event stream failed: " + e);
+		} finally {
+			// Includes the connections that did not send the token yet
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() != null) {
+					close((Connection) key.attachment());
+				}
+			}
+			try {
+				server.close();
+				selector.close();
+			} catch (IOException e) {
+				System.err.println("Cannot close event stream: " + e);
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+	}
+
+	/**
+	 * Reads the token, and once it is complete starts sending to the client when it matches.
+	 */
+	private void authenticate(Connection connection) {
+		if (read(connection, connection.token) < 0) {
+			close(connection);
+			return;
+		}
+		if (connection.token.hasRemaining()) {
+			return;
+		}
+		if (!MessageDigest.isEqual(connection.token.array(), token)) {
+			System.err.println("Event stream client sent a wrong token, closing " + connection.channel.socket().getRemoteSocketAddress());
+			close(connection);
+			return;
+		}
+		connection.token = null;
+		ByteBuffer greeting = ByteBuffer.allocate(8);
+		greeting.putInt(MAGIC).putInt((int) DebuggerAgent.VERSION).flip();
+		connection.current = greeting;
+		connections.add(connection);
+	}
+
+	private int read(Connection connection, ByteBuffer buffer) {
+		try {
+			return connection.channel.read(buffer);
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Writes queued frames until the socket doesn't take more, and then waits for it to become writable.
+	 */
+	private void write(Connection connection) {
+		if (!connection.key.isValid()) {
+			return;
+		}
+		try {
+			while (connection.current != null || (connection.current = connection.frames.poll()) != null) {
+				connection.channel.write(connection.current);
+				if (connection.current.hasRemaining()) {
+					connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				connection.current = null;
+			}
+			connection.key.interestOps(SelectionKey.OP_READ);
+		} catch (IOException e) {
+			close(connection);
+		}
+	}
+
+	private void close(Connection connection) {
+		connections.remove(connection);
+		connection.frames.clear();
+		if (connection.key != null) {
+			connection.key.cancel();
+		}
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			// Gone already
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads the hits sent by an {@link EventStream}, as {@link BreakpointNotification}s.
+ */
+public class EventStreamReader {
+	private final DataInputStream in;
+
+	/**
+	 * Sends the token, and checks the start of the stream, so fails early when connected to something else.
+	 *
+	 * @param token the token of the stream, as returned by {@link DebuggerAgentMBean#startEventStream(int)}
+	 */
+	public EventStreamReader(InputStream in, OutputStream out, String token) throws IOException {
+		if (token.length() != EventStream.TOKEN_LENGTH * 2) {
+			throw new IllegalArgumentException("Not an event stream token: " + token);
+		}
+		byte[] tokenBytes = new byte[EventStream.TOKEN_LENGTH];
+		for (int i = 0; i < tokenBytes.length; i++) {
+			tokenBytes[i] = (byte) Integer.parseInt(token.substring(i * 2, i * 2 + 2), 16);
+		}
+		out.write(tokenBytes);
+		out.flush();
+
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		int magic = this.in.readInt();
+		if (magic != EventStream.MAGIC) {
+			throw new IOException("Not a debugger event stream: " + Integer.toHexString(magic));
+		}
+		int version = this.in.readInt();
+		if (version != DebuggerAgent.VERSION) {
+			throw new IOException("Agent version " + version + " does not match " + DebuggerAgent.VERSION);
+		}
+	}
+
+	/**
+	 * The next hit, <code>null</code> when the agent closed the stream.
+	 */
+	public BreakpointNotification read() throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		byte[] frame = new byte[length];
+		in.readFully(frame);
+		DataInputStream frameIn = new DataInputStream(new ByteArrayInputStream(frame));
+		long timeStamp = frameIn.readLong();
+		String className = frameIn.readUTF();
+		String methodName = frameIn.readUTF();
+		int line = frameIn.readInt();
+		StackTraceElement[] stack = new StackTraceElement[frameIn.readInt()];
+		for (int i = 0; i < stack.length; i++) {
+			String frameClassName = frameIn.readUTF();
+			String frameMethodName = frameIn.readUTF();
+			String fileName = frameIn.readBoolean() ? frameIn.readUTF() : null;
+			stack[i] = new StackTraceElement(frameClassName, frameMethodName, fileName, frameIn.readInt());
+		}
+		// The rest is the snapshot
+		byte[] snapshot = new byte[frameIn.available()];
+		frameIn.readFully(snapshot);
+		return new BreakpointNotification(this, className, methodName, line, timeStamp, new CapturedStack(stack), snapshot);
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,50 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.util.regex.Pattern;
+
+/**
+ * Glob patterns for class and method names.
+ *
+ * <code>?</code> matches one character and <code>*</code> any number of characters, neither crosses the separator.
+ * <code>**</code> matches anything, including separators. With separator 0 there is no separator at all.
+ */
+public final class Glob {
+	private Glob() {
+	}
+
+	public static Pattern compile(String glob, char separator) {
+		String any = separator != 0 ? "[^" + Pattern.quote(String.valueOf(separator)) + "]" : ".";
+		StringBuilder regex = new StringBuilder();
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*') {
+				if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+					regex.append(".*");
+					i++;
+				} else {
+					regex.append(any).append('*');
+				}
+			} else if (c == '?') {
+				regex.append(any);
+			} else if (Character.isLetterOrDigit(c)) {
+				regex.append(c);
+			} else {
+				regex.append('\\').append(c);
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	/**
+	 * The part of the glob before its first wildcard.
+	 */
+	public static String literalPrefix(String glob) {
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*' || c == '?') {
+				return glob.substring(0, i);
+			}
+		}
+		return glob;
+	}
+}
@@ -0,0 +1,153 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of long values with log-linear buckets: every power of two is split into 32 buckets, so values are kept
+ * with a relative error of about 3% over the whole range of long. Negative values go into a second set of buckets by
+ * their magnitude, created when the first one is recorded.
+ *
+ * Recording a value is an atomic add on its bucket plus a few on the totals, and needs no locks.
+ */
+public final class Histogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private volatile AtomicLongArray negativeCounts;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+	public void record(long value) {
+		if (value >= 0) {
+			counts.incrementAndGet(index(value));
+		} else {
+			// Long.MIN_VALUE has no positive counterpart, it shares the bucket of Long.MAX_VALUE.
+			negativeCounts().incrementAndGet(index(value == Long.MIN_VALUE ? Long.MAX_VALUE : -value));
+		}
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long currentMin = min.get();
+		while (value < currentMin && !min.compareAndSet(currentMin, value)) {
+			currentMin = min.get();
+		}
+		long currentMax = max.get();
+		while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	private AtomicLongArray negativeCounts() {
+		AtomicLongArray result = negativeCounts;
+		if (result == null) {
+			synchronized (this) {
+				result = negativeCounts;
+				if (result == null) {
+					result = new AtomicLongArray(BUCKETS);
+					negativeCounts = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * The smallest value that falls into the bucket.
+	 */
+	static long lowestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		return (1L << exponent) | ((long) (index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS));
+	}
+
+	/**
+	 * The largest value that falls into the bucket.
+	 */
+	static long highestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		return lowestValue(index) + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMin() {
+		return count.get() > 0 ? min.get() : 0;
+	}
+
+	public long getMax() {
+		return count.get() > 0 ? max.get() : 0;
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n > 0 ? (double) sum.get() / n : 0;
+	}
+
+	/**
+	 * The value below which the given percentage of the recorded values lie, within the precision of the buckets.
+	 * Values recorded while this runs may or may not be included.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		AtomicLongArray negatives = negativeCounts;
+		if (negatives != null) {
+			// From the largest magnitude down, these are the smallest values.
+			for (int i = BUCKETS - 1; i >= 0; i--) {
+				seen += negatives.get(i);
+				if (seen >= rank) {
+					return Math.min(-lowestValue(i), max.get());
+				}
+			}
+		}
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		AtomicLongArray negatives = negativeCounts;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+			if (negatives != null) {
+				negatives.set(i, 0);
+			}
+		}
+		count.set(0);
+		sum.set(0);
+		min.set(Long.MAX_VALUE);
+		max.set(Long.MIN_VALUE);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + (negativeCounts != null ? ", min=" + getMin() : "") + ", mean=" + Math.round(getMean()) + ", p50=" + getValueAtPercentile(50) + ", p90=" + getValueAtPercentile(90) + ", p99=" + getValueAtPercentile(99) + ", max=" + getMax();
+	}
+}
@@ -0,0 +1,87 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agent-owned thread that drains the {@link HitRingBuffer} and turns the hits into notifications.
+ *
+ * All the expensive work (encoding the locals, JMX delivery) happens here, never on the thread that hit the breakpoint.
+ * Hits are collected into a {@link BreakpointBatchNotification} that is sent when it reaches the configured size, or
+ * when its first hit has waited for the configured delay. While clients are connected to the {@link EventStream}, hits
+ * go there one by one instead.
+ */
+class HitDispatcher implements Runnable {
+	private static final int MAX_BATCH_SIZE = 256;
+
+	private final HitRingBuffer ringBuffer;
+	private final DebuggerAgent agent;
+	private final HitEvent[] batch = new HitEvent[MAX_BATCH_SIZE];
+
+	HitDispatcher(HitRingBuffer ringBuffer, DebuggerAgent agent) {
+		this.ringBuffer = ringBuffer;
+		this.agent = agent;
+	}
+
+	public static Thread start(HitRingBuffer ringBuffer, DebuggerAgent agent) {
+		Thread thread = new Thread(new HitDispatcher(ringBuffer, agent), "debugger-agent-dispatcher");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	@Override
+	public void run() {
+		BreakpointBatchNotification.Builder pending = new BreakpointBatchNotification.Builder();
+		while (!Thread.currentThread().isInterrupted()) {
+			int count = 0;
+			HitEvent event;
+			while (count < batch.length && (event = ringBuffer.poll()) != null) {
+				batch[count++] = event;
+			}
+
+			int maxBatchSize = agent.getMaxBatchSize();
+			boolean streaming = agent.isStreaming();
+			for (int i = 0; i < count; i++) {
+				try {
+					if (streaming) {
+						agent.stream(batch[i]);
+					} else if (maxBatchSize > 1) {
+						agent.addToBatch(batch[i], pending);
+						if (pending.getHitCount() >= maxBatchSize) {
+							flush(pending);
+						}
+					} else {
+						agent.publish(batch[i]);
+					}
+				} catch (Throwable t) {
+					System.err.println("Cannot publish breakpoint hit: " + t);
+				} finally {
+					ringBuffer.release(batch[i]);
+					batch[i] = null;
+				}
+			}
+
+			if (pending.getHitCount() > 0 && (maxBatchSize <= 1 || System.currentTimeMillis() - pending.getFirstTimeStamp() >= agent.getMaxBatchDelay())) {
+				flush(pending);
+			}
+			if (count == 0) {
+				// Sleep until the next hit, or until the pending batch is due.
+				long delay = 0;
+				if (pending.getHitCount() > 0) {
+					delay = Math.max(1, pending.getFirstTimeStamp() + agent.getMaxBatchDelay() - System.currentTimeMillis());
+				}
+				ringBuffer.await(TimeUnit.MILLISECONDS.toNanos(delay));
+			}
+		}
+	}
+
+	private void flush(BreakpointBatchNotification.Builder pending) {
+		try {
+			agent.sendBatch(pending);
+		} catch (Throwable t) {
+			System.err.println("Cannot publish breakpoint hits: " + t);
+		} finally {
+			pending.clear();
+		}
+	}
+}
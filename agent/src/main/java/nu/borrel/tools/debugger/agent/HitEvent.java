@@ -0,0 +1,72 @@
+package nu.borrel.tools.debugger.agent;
+
+/**
+ * A breakpoint hit waiting in the {@link HitRingBuffer} for the dispatcher.
+ *
+ * Events are preallocated by the ring buffer and reused, the slot arrays only grow when a layout needs more
+ * room than any layout before it.
+ */
+public final class HitEvent {
+	volatile long sequence;
+	long claimed;
+
+	private CaptureLayout layout;
+	private Object who;
+	private long timestamp;
+	private CapturedStack stack;
+	private long[] primitives = new long[0];
+	private Object[] references = new Object[0];
+
+	HitEvent(long sequence) {
+		this.sequence = sequence;
+	}
+
+	void fill(CaptureBuffer buffer, Object who, CaptureLayout layout, long timestamp, CapturedStack stack) {
+		if (primitives.length < layout.getSize()) {
+			primitives = new long[layout.getSize()];
+			references = new Object[layout.getSize()];
+		}
+		for (int i = 0; i < layout.getVariableCount(); i++) {
+			int slot = layout.getSlot(i);
+			primitives[slot] = buffer.getPrimitive(slot);
+			references[slot] = buffer.getReference(slot);
+		}
+		this.layout = layout;
+		this.who = who;
+		this.timestamp = timestamp;
+		this.stack = stack;
+	}
+
+	void clear() {
+		for (int i = 0; i < references.length; i++) {
+			references[i] = null;
+		}
+		layout = null;
+		who = null;
+		stack = null;
+	}
+
+	public CaptureLayout getLayout() {
+		return layout;
+	}
+
+	public Object getWho() {
+		return who;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public CapturedStack getStack() {
+		return stack;
+	}
+
+	public long getPrimitive(int slot) {
+		return primitives[slot];
+	}
+
+	public Object getReference(int slot) {
+		return references[slot];
+	}
+}
@@ -0,0 +1,119 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a breakpoint hit that passed the condition is captured: on the n-th hit only, for 1 in n hits,
+ * and/or at most n times per second.
+ *
+ * Each guard is off when set to 0. Hits the guard rejects are counted, but otherwise cost a few atomic operations.
+ */
+public final class HitGuard {
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private volatile boolean active;
+	private volatile long hitCount;
+	private volatile int sampling;
+	private volatile double rateLimit;
+	private volatile long emissionInterval;
+
+	private final AtomicLong hits = new AtomicLong();
+	private volatile boolean hitCountReached;
+	private final StripedCounter samples = new StripedCounter();
+	// Generic cell rate algorithm: the time at which the next hit is due, bursts of up to one second are allowed.
+	private final AtomicLong theoreticalArrivalTime = new AtomicLong();
+	private final StripedCounter suppressed = new StripedCounter();
+
+	public boolean tryPass() {
+		if (!active) {
+			return true;
+		}
+		if (hitCount > 0 && (hitCountReached || hits.incrementAndGet() != hitCount)) {
+			suppressed.increment();
+			return false;
+		}
+		if (hitCount > 0) {
+			hitCountReached = true;
+		}
+		if (sampling > 1 && samples.increment() % sampling != 0) {
+			suppressed.increment();
+			return false;
+		}
+		if (emissionInterval > 0 && !tryAcquireRate()) {
+			suppressed.increment();
+			return false;
+		}
+		return true;
+	}
+
+	private boolean tryAcquireRate() {
+		long interval = emissionInterval;
+		long now = System.nanoTime();
+		while (true) {
+			long tat = theoreticalArrivalTime.get();
+			long next = Math.max(tat, now);
+			if (next - now > NANOS_PER_SECOND - interval) {
+				return false;
+			}
+			if (theoreticalArrivalTime.compareAndSet(tat, next + interval)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Fire only on the <code>hitCount</code>-th hit, counting from now.
+	 */
+	public void setHitCount(long hitCount) {
+		hits.set(0);
+		hitCountReached = false;
+		this.hitCount = Math.max(0, hitCount);
+		updateActive();
+	}
+
+	/**
+	 * Fire on 1 in <code>sampling</code> hits.
+	 */
+	public void setSampling(int sampling) {
+		samples.reset();
+		this.sampling = Math.max(0, sampling);
+		updateActive();
+	}
+
+	/**
+	 * Fire at most <code>rateLimit</code> times per second.
+	 */
+	public void setRateLimit(double rateLimit) {
+		this.rateLimit = Math.max(0, rateLimit);
+		this.emissionInterval = rateLimit > 0 ? Math.max(1, (long) (NANOS_PER_SECOND / rateLimit)) : 0;
+		theoreticalArrivalTime.set(System.nanoTime());
+		updateActive();
+	}
+
+	private void updateActive() {
+		active = hitCount > 0 || sampling > 1 || emissionInterval > 0;
+	}
+
+	public long getSuppressedCount() {
+		return suppressed.sum();
+	}
+
+	@Override
+	public String toString() {
+		if (!active) {
+			return "always";
+		}
+		StringBuilder result = new StringBuilder();
+		if (hitCount > 0) {
+			result.append("on hit ").append(hitCount).append(" (").append(hitCountReached ? "reached" : hits.get() + " so far").append("), ");
+		}
+		if (sampling > 1) {
+			result.append("1 in ").append(sampling).append(", ");
+		}
+		if (emissionInterval > 0) {
+			result.append("at most ").append(rateLimit).append("/s, ");
+		}
+		return result.append(getSuppressedCount()).append(" suppressed").toString();
+	}
+}
@@ -0,0 +1,183 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free multi-producer queue of preallocated {@link HitEvent}s.
+ *
+ * Application threads {@link #offer} hits, the dispatcher thread {@link #poll}s them. Each event carries a sequence
+ * number that tells whether it is free for the producer claiming that position, or published for the consumer.
+ * When the buffer is full the {@link OverflowPolicy} decides which hit gets lost, the producer never waits.
+ * An idle consumer parks in {@link #await}, the producer that publishes the next hit unparks it.
+ */
+public final class HitRingBuffer {
+	private static final int DROP_OLDEST_ATTEMPTS = 4;
+
+	private final HitEvent[] events;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong sampled = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	// The consumer parked in await(), taken by the producer that wakes it
+	private final AtomicReference<Thread> waiter = new AtomicReference<Thread>();
+
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+	private volatile int sampleRate = 10;
+
+	public HitRingBuffer(int capacity) {
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+		}
+		this.events = new HitEvent[capacity];
+		this.mask = capacity - 1;
+		for (int i = 0; i < capacity; i++) {
+			events[i] = new HitEvent(i);
+		}
+	}
+
+	public boolean offer(CaptureBuffer buffer, Object who, CaptureLayout layout, long timestamp, CapturedStack stack) {
+		OverflowPolicy policy = overflowPolicy;
+		if (policy == OverflowPolicy.SAMPLE && size() > mask / 2 && sampled.incrementAndGet() % sampleRate != 0) {
+			dropped.incrementAndGet();
+			return false;
+		}
+
+		HitEvent event = claim();
+		for (int attempt = 0; event == null && policy == OverflowPolicy.DROP_OLDEST && attempt < DROP_OLDEST_ATTEMPTS; attempt++) {
+			// Only the queued hit in the slot the claim needs makes room. When the dispatcher still holds that slot,
+			// dropping queued hits would free other slots, and lose them for nothing.
+			HitEvent oldest = pollAt(tail.get() - events.length);
+			if (oldest == null) {
+				break;
+			}
+			release(oldest);
+			dropped.incrementAndGet();
+			event = claim();
+		}
+		if (event == null) {
+			dropped.incrementAndGet();
+			return false;
+		}
+
+		event.fill(buffer, who, layout, timestamp, stack);
+		event.sequence = event.claimed + 1;
+		if (waiter.get() != null) {
+			Thread thread = waiter.getAndSet(null);
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parks the consumer until a hit is published, or until the timeout passes. Returns right away when there are hits
+	 * already.
+	 *
+	 * @param timeoutNanos the longest wait, 0 to wait for a hit or an interrupt
+	 */
+	public void await(long timeoutNanos) {
+		waiter.set(Thread.currentThread());
+		// Checked after registering: a producer publishing in between sees the waiter and unparks.
+		if (isEmpty()) {
+			if (timeoutNanos > 0) {
+				LockSupport.parkNanos(this, timeoutNanos);
+			} else {
+				LockSupport.park(this);
+			}
+		}
+		waiter.set(null);
+	}
+
+	private boolean isEmpty() {
+		long position = head.get();
+		return events[(int) position & mask].sequence - (position + 1) < 0;
+	}
+
+	private HitEvent claim() {
+		while (true) {
+			long position = tail.get();
+			HitEvent event = events[(int) position & mask];
+			long difference = event.sequence - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					event.claimed = position;
+					return event;
+				}
+			} else if (difference < 0) {
+				// Full: the consumer has not yet released this event from the previous round.
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Takes the oldest published event, which must be handed back through {@link #release} after use.
+	 */
+	public HitEvent poll() {
+		while (true) {
+			long position = head.get();
+			HitEvent event = events[(int) position & mask];
+			long difference = event.sequence - (position + 1);
+			if (difference == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					event.claimed = position;
+					return event;
+				}
+			} else if (difference < 0) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Takes the event at the given position if it is the oldest published one, <code>null</code> otherwise.
+	 */
+	private HitEvent pollAt(long position) {
+		HitEvent event = events[(int) position & mask];
+		if (event.sequence == position + 1 && head.compareAndSet(position, position + 1)) {
+			event.claimed = position;
+			return event;
+		}
+		return null;
+	}
+
+	public void release(HitEvent event) {
+		event.clear();
+		event.sequence = event.claimed + events.length;
+	}
+
+	public int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	public int getCapacity() {
+		return events.length;
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public void setSampleRate(int sampleRate) {
+		if (sampleRate < 1) {
+			throw new IllegalArgumentException("Sample rate must be positive: " + sampleRate);
+		}
+		this.sampleRate = sampleRate;
+	}
+}
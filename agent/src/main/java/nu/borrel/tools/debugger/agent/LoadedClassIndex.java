@@ -0,0 +1,135 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Index of loaded classes by name, so that resolving a breakpoint's class does not scan all loaded classes.
+ *
+ * The index is filled once from {@link java.lang.instrument.Instrumentation#getAllLoadedClasses()}, and then kept
+ * up to date by the agent's transformer, which records the name and defining loader of every class loaded
+ * afterwards through {@link #classLoaded(String, ClassLoader)}. The {@link Class} of such a class is looked up from its loader on first use. Classes and
+ * loaders are only weakly referenced, so the index never keeps a class loader alive.
+ */
+public class LoadedClassIndex {
+	private static class Entry {
+		// Either a WeakReference<Class<?>>, or a WeakReference<ClassLoader> (null for the bootstrap loader) for classes whose Class we haven't seen yet.
+		private final List<Object> references = new CopyOnWriteArrayList<Object>();
+	}
+
+	private static class LoaderReference extends WeakReference<ClassLoader> {
+		private final boolean bootstrap;
+
+		LoaderReference(ClassLoader loader) {
+			super(loader);
+			this.bootstrap = loader == null;
+		}
+
+		boolean isCleared() {
+			return !bootstrap && get() == null;
+		}
+	}
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Records a class that is being loaded, by its internal name.
+	 */
+	public void classLoaded(String internalName, ClassLoader loader) {
+		entry(internalName.replace('/', '.')).references.add(new LoaderReference(loader));
+	}
+
+	public void addAll(Class<?>[] classes) {
+		for (Class<?> c : classes) {
+			add(c);
+		}
+	}
+
+	public void add(Class<?> c) {
+		Entry entry = entry(c.getName());
+		for (Object reference : entry.references) {
+			if (reference instanceof WeakReference<?> && ((WeakReference<?>) reference).get() == c) {
+				return;
+			}
+		}
+		entry.references.add(new WeakReference<Class<?>>(c));
+	}
+
+	/**
+	 * All loaded classes with the given binary name, from all class loaders.
+	 */
+	public List<Class<?>> get(String className) {
+		List<Class<?>> result = new ArrayList<Class<?>>();
+		Entry entry = entries.get(className);
+		if (entry == null) {
+			return result;
+		}
+		List<Class<?>> resolved = new ArrayList<Class<?>>();
+		for (Object reference : entry.references) {
+			if (reference instanceof LoaderReference) {
+				LoaderReference loaderReference = (LoaderReference) reference;
+				entry.references.remove(reference);
+				Class<?> c = loaderReference.isCleared() ? null : findLoadedClass(className, loaderReference.get());
+				if (c != null) {
+					resolved.add(c);
+				}
+			} else {
+				Class<?> c = (Class<?>) ((WeakReference<?>) reference).get();
+				if (c != null) {
+					result.add(c);
+				} else {
+					entry.references.remove(reference);
+				}
+			}
+		}
+		for (Class<?> resolvedClass : resolved) {
+			if (!result.contains(resolvedClass)) {
+				add(resolvedClass);
+				result.add(resolvedClass);
+			}
+		}
+		return result;
+	}
+
+	private static Class<?> findLoadedClass(String className, ClassLoader loader) {
+		try {
+			// The loader defined the class already, so it finds it without loading anything.
+			Class<?> c = Class.forName(className, false, loader);
+			return c.getClassLoader() == loader ? c : null;
+		} catch (ClassNotFoundException e) {
+			// Defining it must have failed.
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	private Entry entry(String className) {
+		Entry entry = entries.get(className);
+		if (entry == null) {
+			Entry newEntry = new Entry();
+			entry = entries.putIfAbsent(className, newEntry);
+			if (entry == null) {
+				entry = newEntry;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * The binary names of all classes in the index, including names that were loaded by loaders that are gone.
+	 */
+	public Set<String> getClassNames() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	public int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,123 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Timing of a traced method: the latency of every call goes into a {@link Histogram}, calls that end with an exception
+ * are counted by exception type, and the value returned last is kept.
+ *
+ * Like {@link CaptureLayout}s, traces are registered in a table, and the injected code refers to them by id.
+ */
+public final class MethodTrace {
+	private static volatile MethodTrace[] traces = new MethodTrace[0];
+
+	private final int id;
+	private final String className;
+	private final String methodName;
+	private final String methodDesc;
+	private final Histogram latency = new Histogram();
+	private final ConcurrentMap<String, StripedCounter> exceptions = new ConcurrentHashMap<String, StripedCounter>();
+	private volatile Object lastReturnValue;
+
+	private MethodTrace(int id, String className, String methodName) {
+		this.id = id;
+		this.className = className;
+		int descStart = methodName.indexOf('(');
+		this.methodName = descStart >= 0 ? methodName.substring(0, descStart) : methodName;
+		this.methodDesc = descStart >= 0 ? methodName.substring(descStart) : null;
+	}
+
+	/**
+	 * @param methodName the method name for all overloads, or the name followed by the descriptor for one
+	 */
+	public static synchronized MethodTrace create(String className, String methodName) {
+		MethodTrace[] newTraces = Arrays.copyOf(traces, traces.length + 1);
+		MethodTrace trace = new MethodTrace(traces.length, className, methodName);
+		newTraces[trace.id] = trace;
+		traces = newTraces;
+		return trace;
+	}
+
+	public static MethodTrace get(int id) {
+		MethodTrace[] current = traces;
+		if (id < 0 || id >= current.length) {
+			throw new IllegalArgumentException("No such trace: " + id);
+		}
+		return current[id];
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	public String getMethodName() {
+		return methodName;
+	}
+
+	/**
+	 * The descriptor of the traced method, <code>null</code> if all overloads are traced.
+	 */
+	public String getMethodDesc() {
+		return methodDesc;
+	}
+
+	public Histogram getLatency() {
+		return latency;
+	}
+
+	void exit(Object returnValue, long startNanos) {
+		latency.record(System.nanoTime() - startNanos);
+		lastReturnValue = returnValue;
+	}
+
+	void exception(Throwable t, long startNanos) {
+		latency.record(System.nanoTime() - startNanos);
+		String type = t.getClass().getName();
+		StripedCounter counter = exceptions.get(type);
+		if (counter == null) {
+			StripedCounter newCounter = new StripedCounter();
+			counter = exceptions.putIfAbsent(type, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		counter.increment();
+	}
+
+	public void reset() {
+		latency.reset();
+		exceptions.clear();
+		lastReturnValue = null;
+	}
+
+	/**
+	 * Latencies in nanoseconds, the exceptions thrown and the last return value.
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(this).append(": ").append(latency).append(" (ns)");
+		for (Map.Entry<String, StripedCounter> exception : exceptions.entrySet()) {
+			sb.append("\n\tthrew ").append(exception.getKey()).append(": ").append(exception.getValue().sum());
+		}
+		String value;
+		try {
+			value = String.valueOf(lastReturnValue);
+		} catch (RuntimeException e) {
+			value = "<" + e + ">";
+		}
+		sb.append("\n\treturned last: ").append(value);
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "#" + id + " " + className + "#" + methodName + (methodDesc != null ? methodDesc : "");
+	}
+}
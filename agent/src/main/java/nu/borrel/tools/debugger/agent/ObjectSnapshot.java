@@ -0,0 +1,96 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A captured object that is neither a primitive, string, array nor JDK collection. Application objects come with their
+ * fields, and a number that identifies them within the hit. When the same object is met again, through a cycle or
+ * because it is shared, it is a reference: the number and class only. JDK objects and enums come as their text.
+ */
+public final class ObjectSnapshot implements Serializable {
+	private static final long serialVersionUID = DebuggerAgent.VERSION;
+
+	private final String className;
+	private final int number;
+	private final Map<String, Serializable> fields;
+	private final String text;
+
+	public ObjectSnapshot(String className, String text) {
+		this.className = className;
+		this.number = -1;
+		this.fields = null;
+		this.text = text;
+	}
+
+	public ObjectSnapshot(String className, int number, Map<String, Serializable> fields) {
+		this.className = className;
+		this.number = number;
+		this.fields = fields;
+		this.text = null;
+	}
+
+	/**
+	 * A reference to the object with the given number.
+	 */
+	public ObjectSnapshot(String className, int number) {
+		this.className = className;
+		this.number = number;
+		this.fields = null;
+		this.text = null;
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	/**
+	 * The number of the object within its hit, -1 for objects captured as text.
+	 */
+	public int getNumber() {
+		return number;
+	}
+
+	public boolean isReference() {
+		return number >= 0 && fields == null;
+	}
+
+	/**
+	 * The fields by name, <code>null</code> for references and objects captured as text.
+	 */
+	public Map<String, Serializable> getFields() {
+		return fields;
+	}
+
+	/**
+	 * The text, <code>null</code> for objects captured with their fields.
+	 */
+	public String getText() {
+		return text;
+	}
+
+	@Override
+	public String toString() {
+		if (text != null) {
+			return text;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(className.substring(className.lastIndexOf('.') + 1)).append('@').append(number);
+		if (fields != null) {
+			sb.append('{');
+			for (Iterator<Map.Entry<String, Serializable>> it = fields.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Serializable> field = it.next();
+				sb.append(field.getKey());
+				if (!SnapshotDecoder.TRUNCATED.equals(field.getKey())) {
+					sb.append('=').append(field.getValue());
+				}
+				if (it.hasNext()) {
+					sb.append(", ");
+				}
+			}
+			sb.append('}');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,13 @@
+package nu.borrel.tools.debugger.agent;
+
+/**
+ * What to do with a breakpoint hit when the {@link HitRingBuffer} cannot take it.
+ */
+public enum OverflowPolicy {
+	/** Discard the hit that did not fit. */
+	DROP_NEWEST,
+	/** Discard the oldest queued hit to make room, or the newest while the dispatcher still holds the room it needs. */
+	DROP_OLDEST,
+	/** Once the buffer is half full only keep every n-th hit, and drop the newest when full. */
+	SAMPLE,
+}
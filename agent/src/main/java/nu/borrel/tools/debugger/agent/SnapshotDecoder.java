@@ -0,0 +1,204 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the snapshots written by {@link SnapshotEncoder}.
+ *
+ * Primitives come back boxed, arrays and collections as lists, maps as maps, other objects as {@link ObjectSnapshot}s.
+ * Strings that were shortened end in "...", and where values were left out a "..." element, entry or field takes their
+ * place.
+ */
+public final class SnapshotDecoder {
+	public static final String TRUNCATED = "...";
+
+	private final byte[] bytes;
+	private int position;
+	// The objects walked field by field, by number
+	private final List<ObjectSnapshot> objects = new ArrayList<ObjectSnapshot>();
+
+	private SnapshotDecoder(byte[] bytes, int offset) {
+		this.bytes = bytes;
+		this.position = offset;
+	}
+
+	public static Map<String, Serializable> decode(byte[] bytes) {
+		return decode(bytes, 0);
+	}
+
+	public static Map<String, Serializable> decode(byte[] bytes, int offset) {
+		return new SnapshotDecoder(bytes, offset).readVariables();
+	}
+
+	/**
+	 * The fields of <code>this</code> among the decoded local variables, empty in static methods or when
+	 * <code>this</code> was not captured with its fields.
+	 */
+	static Map<String, Serializable> getMemberVariables(Map<String, Serializable> localVariables) {
+		Serializable self = localVariables.get("this");
+		if (self instanceof ObjectSnapshot && ((ObjectSnapshot) self).getFields() != null) {
+			return ((ObjectSnapshot) self).getFields();
+		}
+		return Collections.emptyMap();
+	}
+
+	private Map<String, Serializable> readVariables() {
+		return readPairs(new LinkedHashMap<String, Serializable>());
+	}
+
+	/**
+	 * Name/value pairs until {@link SnapshotEncoder#END}.
+	 */
+	private Map<String, Serializable> readPairs(Map<String, Serializable> variables) {
+		while (true) {
+			if (bytes[position] == SnapshotEncoder.END) {
+				break;
+			} else if (readTruncated()) {
+				variables.put(TRUNCATED, TRUNCATED);
+			} else {
+				position++;
+				String name = readString();
+				variables.put(name, readValue());
+			}
+		}
+		position++;
+		return variables;
+	}
+
+	private Serializable readValue() {
+		byte tag = bytes[position++];
+		switch (tag) {
+		case SnapshotEncoder.NULL:
+			return null;
+		case SnapshotEncoder.BOOLEAN:
+			return Boolean.valueOf(bytes[position++] != 0);
+		case SnapshotEncoder.BYTE:
+			return Byte.valueOf(bytes[position++]);
+		case SnapshotEncoder.CHAR:
+			return Character.valueOf((char) readVarLong());
+		case SnapshotEncoder.SHORT:
+			return Short.valueOf((short) readSignedVarLong());
+		case SnapshotEncoder.INT:
+			return Integer.valueOf((int) readSignedVarLong());
+		case SnapshotEncoder.LONG:
+			return Long.valueOf(readSignedVarLong());
+		case SnapshotEncoder.FLOAT:
+			return Float.valueOf(Float.intBitsToFloat((int) readFixed(4)));
+		case SnapshotEncoder.DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(readFixed(8)));
+		case SnapshotEncoder.STRING:
+			return readString();
+		case SnapshotEncoder.ARRAY:
+		case SnapshotEncoder.COLLECTION: {
+			readString();
+			readVarLong();
+			ArrayList<Serializable> elements = new ArrayList<Serializable>();
+			while (bytes[position] != SnapshotEncoder.END) {
+				elements.add(readTruncated() ? TRUNCATED : readValue());
+			}
+			position++;
+			return elements;
+		}
+		case SnapshotEncoder.MAP: {
+			readString();
+			readVarLong();
+			LinkedHashMap<Serializable, Serializable> entries = new LinkedHashMap<Serializable, Serializable>();
+			while (bytes[position] != SnapshotEncoder.END) {
+				// The marker by its tag: a key may well be the string "..." itself.
+				if (readTruncated()) {
+					entries.put(TRUNCATED, TRUNCATED);
+				} else {
+					Serializable key = readValue();
+					entries.put(key, readValue());
+				}
+			}
+			position++;
+			return entries;
+		}
+		case SnapshotEncoder.OBJECT:
+			return new ObjectSnapshot(readString(), readString());
+		case SnapshotEncoder.FIELDS: {
+			LinkedHashMap<String, Serializable> fields = new LinkedHashMap<String, Serializable>();
+			ObjectSnapshot object = new ObjectSnapshot(readString(), objects.size(), fields);
+			objects.add(object);
+			readPairs(fields);
+			return object;
+		}
+		case SnapshotEncoder.REFERENCE: {
+			int number = (int) readVarLong();
+			return new ObjectSnapshot(objects.get(number).getClassName(), number);
+		}
+		case SnapshotEncoder.TOO_DEEP: {
+			String className = readString();
+			return new ObjectSnapshot(className, className + "{" + TRUNCATED + "}");
+		}
+		case SnapshotEncoder.ERROR:
+			return "<" + readString() + ": " + readString() + ">";
+		default:
+			throw new IllegalArgumentException("Invalid snapshot tag " + tag + " at " + (position - 1));
+		}
+	}
+
+	/**
+	 * Whether the next tag is the marker of values left out, which is then skipped.
+	 */
+	private boolean readTruncated() {
+		if (bytes[position] == SnapshotEncoder.TRUNCATED) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	private String readString() {
+		int length = (int) readVarLong();
+		int written = (int) readVarLong();
+		StringBuilder sb = new StringBuilder(written + (written < length ? TRUNCATED.length() : 0));
+		for (int i = 0; i < written; i++) {
+			int b = bytes[position++] & 0xff;
+			if (b < 0x80) {
+				sb.append((char) b);
+			} else if (b < 0xe0) {
+				sb.append((char) ((b & 0x1f) << 6 | bytes[position++] & 0x3f));
+			} else {
+				int b2 = bytes[position++] & 0x3f;
+				sb.append((char) ((b & 0x0f) << 12 | b2 << 6 | bytes[position++] & 0x3f));
+			}
+		}
+		if (written < length) {
+			sb.append(TRUNCATED);
+		}
+		return sb.toString();
+	}
+
+	private long readVarLong() {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = bytes[position++];
+			value |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private long readSignedVarLong() {
+		long value = readVarLong();
+		return value >>> 1 ^ -(value & 1);
+	}
+
+	private long readFixed(int size) {
+		// ByteBuffer's default big-endian order
+		long value = 0;
+		for (int i = 0; i < size; i++) {
+			value = value << 8 | bytes[position++] & 0xff;
+		}
+		return value;
+	}
+}
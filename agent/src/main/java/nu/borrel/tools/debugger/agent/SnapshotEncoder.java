@@ -0,0 +1,501 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes the local variables of a hit into a compact binary snapshot, see {@link SnapshotDecoder} for the reverse.
+ *
+ * A snapshot is a sequence of name/value pairs, ended by {@link #END}. Names and values start with a tag. Primitives and
+ * their boxes are written as such, strings up to a maximum length, and arrays and the plain collections and maps of the
+ * JDK with a bounded number of elements up to a bounded depth. Enums and JDK value types such as <code>BigDecimal</code>
+ * or <code>Date</code> become their class name and a shortened <code>toString()</code>. All remaining objects are
+ * walked field by field, without calling any of their methods: <code>toString()</code> of an application class may be
+ * slow or fail, and collections that are not part of the JDK might do anything when iterated, for instance load a lazy
+ * collection from the database. That includes JDK wrappers such as <code>Collections.unmodifiableList()</code> or
+ * <code>AtomicReference</code>, which would pass these calls on to what they wrap. An object that appears a second
+ * time, through a cycle or shared, becomes a {@link #REFERENCE} to the first.
+ *
+ * The encoder writes into a direct buffer that is reused for every hit, so it is meant for a single thread: the
+ * dispatcher. When a snapshot reaches its maximum size or time the value being written is replaced by
+ * {@link #TRUNCATED}, and the remaining values are left out. Space for closing all open values is kept in reserve, so
+ * the result is always well-formed.
+ */
+public final class SnapshotEncoder {
+	static final byte NULL = 0;
+	static final byte BOOLEAN = 1;
+	static final byte BYTE = 2;
+	static final byte CHAR = 3;
+	static final byte SHORT = 4;
+	static final byte INT = 5;
+	static final byte LONG = 6;
+	static final byte FLOAT = 7;
+	static final byte DOUBLE = 8;
+	static final byte STRING = 9;
+	/** Array, collection and map: class name, size, then elements (keys and values for maps) until {@link #END}. */
+	static final byte ARRAY = 10;
+	static final byte COLLECTION = 11;
+	static final byte MAP = 12;
+	/** Class name and text. */
+	static final byte OBJECT = 13;
+	/** Values left out from here on, within the enclosing array, collection or map, or the snapshot. */
+	static final byte TRUNCATED = 14;
+	/** Class name of a value nested too deep to be written. */
+	static final byte TOO_DEEP = 15;
+	/** Exception while reading the value: class name and message. */
+	static final byte ERROR = 16;
+	static final byte END = 17;
+	/** Object walked field by field: class name, then name/value pairs until {@link #END}. Objects are numbered in order. */
+	static final byte FIELDS = 18;
+	/** The number of an object written before. */
+	static final byte REFERENCE = 19;
+
+	// Two bytes (TRUNCATED, END) for every level that may be open, and for the snapshot itself.
+	private static final int RESERVE = 2 * (SnapshotLimits.MAX_DEPTH + 2);
+	// JDK classes whose toString() only shows their own state
+	private static final Set<String> VALUE_CLASSES = new HashSet<String>(Arrays.asList(
+			"java.lang.Class", "java.lang.StringBuilder", "java.lang.StringBuffer",
+			"java.math.BigDecimal", "java.math.BigInteger",
+			"java.util.concurrent.atomic.AtomicBoolean", "java.util.concurrent.atomic.AtomicInteger", "java.util.concurrent.atomic.AtomicLong",
+			"java.util.Date", "java.sql.Date", "java.sql.Time", "java.sql.Timestamp",
+			"java.util.UUID", "java.util.Locale", "java.util.Currency",
+			"java.io.File", "java.net.URI", "java.net.URL", "java.net.Inet4Address", "java.net.Inet6Address"));
+	// Nested JDK collections and maps that hold their elements themselves, rather than wrapping another collection
+	private static final Set<String> PLAIN_NESTED_COLLECTIONS = new HashSet<String>(Arrays.asList(
+			"java.util.Arrays$ArrayList",
+			"java.util.Collections$EmptyList", "java.util.Collections$EmptySet", "java.util.Collections$EmptyMap",
+			"java.util.Collections$SingletonList", "java.util.Collections$SingletonSet", "java.util.Collections$SingletonMap",
+			"java.util.ImmutableCollections$List12", "java.util.ImmutableCollections$ListN",
+			"java.util.ImmutableCollections$Set12", "java.util.ImmutableCollections$SetN",
+			"java.util.ImmutableCollections$Map1", "java.util.ImmutableCollections$MapN"));
+
+	private final ByteBuffer buffer;
+	private SnapshotLimits limits = SnapshotLimits.DEFAULT;
+	private boolean full;
+	private long deadline;
+	// The objects walked in this snapshot, by number and by identity
+	private final List<Object> objects = new ArrayList<Object>();
+	private final Map<Object, Integer> objectNumbers = new IdentityHashMap<Object, Integer>();
+
+	public SnapshotEncoder(int capacity) {
+		this.buffer = ByteBuffer.allocateDirect(capacity + RESERVE);
+	}
+
+	public void begin(SnapshotLimits limits) {
+		this.limits = limits;
+		this.full = false;
+		this.deadline = System.nanoTime() + limits.getMaxTimeMicros() * 1000;
+		buffer.clear();
+		objects.clear();
+		objectNumbers.clear();
+		buffer.limit(Math.min(limits.getMaxBytes(), buffer.capacity() - RESERVE));
+	}
+
+	/**
+	 * Adds a local variable of the given type, primitives come in their raw form as stored in the
+	 * {@link CaptureBuffer}.
+	 */
+	public void addVariable(String name, String desc, long primitive, Object reference) {
+		if (full || expired()) {
+			return;
+		}
+		int start = buffer.position();
+		int objectCount = objects.size();
+		try {
+			buffer.put(STRING);
+			writeString(name, Integer.MAX_VALUE);
+			char type = desc.charAt(0);
+			if (type == 'L' || type == '[') {
+				writeValue(reference, 0);
+			} else {
+				writePrimitive(type, primitive);
+			}
+		} catch (BufferOverflowException e) {
+			rewind(start, objectCount);
+			overflow();
+		}
+	}
+
+	/**
+	 * The snapshot, also when it was truncated.
+	 */
+	public byte[] end() {
+		close();
+		byte[] bytes = new byte[buffer.position()];
+		buffer.flip();
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Ends the snapshot, and returns the buffer holding it, ready to be read. The buffer is only valid until the next
+	 * {@link #begin(SnapshotLimits)}.
+	 */
+	public ByteBuffer endBuffer() {
+		close();
+		buffer.flip();
+		return buffer;
+	}
+
+	private void close() {
+		if (full) {
+			buffer.put(TRUNCATED);
+		}
+		buffer.put(END);
+		// Don't hold on to the objects of the application until the next hit.
+		objects.clear();
+		objectNumbers.clear();
+	}
+
+	private void overflow() {
+		full = true;
+		// From here on only the tags closing the open values get written, these fit into the reserve.
+		buffer.limit(buffer.capacity());
+	}
+
+	/**
+	 * Whether the time for this snapshot is up, the snapshot is then full.
+	 */
+	private boolean expired() {
+		if (System.nanoTime() - deadline > 0) {
+			overflow();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Drops what was written from <code>position</code> on, including the objects walked.
+	 */
+	private void rewind(int position, int objectCount) {
+		buffer.position(position);
+		while (objects.size() > objectCount) {
+			objectNumbers.remove(objects.remove(objects.size() - 1));
+		}
+	}
+
+	/**
+	 * A primitive in its raw form, see {@link CaptureBuffer}.
+	 */
+	private void writePrimitive(char type, long primitive) {
+		switch (type) {
+		case 'Z':
+			buffer.put(BOOLEAN).put((byte) primitive);
+			break;
+		case 'B':
+			buffer.put(BYTE).put((byte) primitive);
+			break;
+		case 'C':
+			buffer.put(CHAR);
+			writeVarLong((char) primitive);
+			break;
+		case 'S':
+			buffer.put(SHORT);
+			writeSignedVarLong((short) primitive);
+			break;
+		case 'I':
+			buffer.put(INT);
+			writeSignedVarLong((int) primitive);
+			break;
+		case 'J':
+			buffer.put(LONG);
+			writeSignedVarLong(primitive);
+			break;
+		case 'F':
+			buffer.put(FLOAT).putInt((int) primitive);
+			break;
+		case 'D':
+			buffer.put(DOUBLE).putLong(primitive);
+			break;
+		default:
+			throw new IllegalArgumentException("Not a primitive type: " + type);
+		}
+	}
+
+	private void writeValue(Object value, int depth) {
+		if (value == null) {
+			buffer.put(NULL);
+		} else if (value instanceof String) {
+			buffer.put(STRING);
+			writeString((String) value, limits.getMaxStringLength());
+		} else if (value instanceof Number && value.getClass().getName().startsWith("java.lang.")) {
+			writeNumber((Number) value, depth);
+		} else if (value instanceof Boolean) {
+			buffer.put(BOOLEAN).put((byte) (((Boolean) value).booleanValue() ? 1 : 0));
+		} else if (value instanceof Character) {
+			buffer.put(CHAR);
+			writeVarLong(((Character) value).charValue());
+		} else if (depth >= limits.getMaxDepth() && (value.getClass().isArray() || value instanceof Collection<?> && isPlainCollection(value.getClass()) || value instanceof Map<?, ?> && isPlainCollection(value.getClass()))) {
+			buffer.put(TOO_DEEP);
+			writeString(value.getClass().getName(), Integer.MAX_VALUE);
+		} else if (value.getClass().isArray()) {
+			writeArray(value, depth);
+		} else if (value instanceof Collection<?> && isPlainCollection(value.getClass())) {
+			Collection<?> collection = (Collection<?>) value;
+			try {
+				buffer.put(COLLECTION);
+				writeString(value.getClass().getName(), Integer.MAX_VALUE);
+				writeVarLong(collection.size());
+				writeElements(collection.iterator(), false, depth);
+			} catch (BufferOverflowException e) {
+				throw e;
+			} catch (RuntimeException e) {
+				// Concurrently modified, most likely. What was written so far stays.
+				writeError(e);
+				buffer.put(END);
+			}
+		} else if (value instanceof Map<?, ?> && isPlainCollection(value.getClass())) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			try {
+				buffer.put(MAP);
+				writeString(value.getClass().getName(), Integer.MAX_VALUE);
+				writeVarLong(map.size());
+				writeElements(map.entrySet().iterator(), true, depth);
+			} catch (BufferOverflowException e) {
+				throw e;
+			} catch (RuntimeException e) {
+				writeError(e);
+				buffer.put(END);
+			}
+		} else {
+			writeObject(value, depth);
+		}
+	}
+
+	private void writeNumber(Number value, int depth) {
+		if (value instanceof Integer) {
+			buffer.put(INT);
+			writeSignedVarLong(value.intValue());
+		} else if (value instanceof Long) {
+			buffer.put(LONG);
+			writeSignedVarLong(value.longValue());
+		} else if (value instanceof Double) {
+			buffer.put(DOUBLE).putLong(Double.doubleToRawLongBits(value.doubleValue()));
+		} else if (value instanceof Float) {
+			buffer.put(FLOAT).putInt(Float.floatToRawIntBits(value.floatValue()));
+		} else if (value instanceof Short) {
+			buffer.put(SHORT);
+			writeSignedVarLong(value.shortValue());
+		} else if (value instanceof Byte) {
+			buffer.put(BYTE).put(value.byteValue());
+		} else {
+			writeObject(value, depth);
+		}
+	}
+
+	/**
+	 * Enums and JDK value types as class name and the start of <code>toString()</code>, other objects field by field.
+	 */
+	private void writeObject(Object value, int depth) {
+		if (value instanceof Enum<?>) {
+			buffer.put(OBJECT);
+			writeString(((Enum<?>) value).getDeclaringClass().getName(), Integer.MAX_VALUE);
+			writeString(((Enum<?>) value).name(), limits.getMaxStringLength());
+			return;
+		}
+		if (!isValueClass(value.getClass())) {
+			Integer number = objectNumbers.get(value);
+			if (number != null) {
+				buffer.put(REFERENCE);
+				writeVarLong(number.intValue());
+			} else if (depth >= limits.getMaxDepth()) {
+				buffer.put(TOO_DEEP);
+				writeString(value.getClass().getName(), Integer.MAX_VALUE);
+			} else {
+				writeFields(value, depth);
+			}
+			return;
+		}
+		String text;
+		try {
+			text = value.toString();
+		} catch (RuntimeException e) {
+			writeError(e);
+			return;
+		}
+		buffer.put(OBJECT);
+		writeString(value.getClass().getName(), Integer.MAX_VALUE);
+		writeString(text != null ? text : "null", limits.getMaxStringLength());
+	}
+
+	private void writeFields(Object value, int depth) {
+		ClassFields fields = ClassFields.getIfPresent(value.getClass());
+		if (fields == null) {
+			// Done once per class, this doesn't count against the time of the hit.
+			long start = System.nanoTime();
+			try {
+				fields = ClassFields.get(value.getClass());
+			} catch (LinkageError e) {
+				// A field type that can't be loaded
+				writeError(e);
+				return;
+			} finally {
+				deadline += System.nanoTime() - start;
+			}
+		}
+		objectNumbers.put(value, Integer.valueOf(objects.size()));
+		objects.add(value);
+		buffer.put(FIELDS);
+		writeString(value.getClass().getName(), Integer.MAX_VALUE);
+		for (int i = 0; i < fields.size(); i++) {
+			if (i == limits.getMaxFields() || full || expired()) {
+				buffer.put(TRUNCATED);
+				break;
+			}
+			int start = buffer.position();
+			int objectCount = objects.size();
+			try {
+				buffer.put(STRING);
+				writeString(fields.getName(i), Integer.MAX_VALUE);
+				try {
+					char type = fields.getType(i);
+					if (type == 'L') {
+						writeValue(fields.getReference(value, i), depth + 1);
+					} else {
+						writePrimitive(type, fields.getPrimitive(value, i));
+					}
+				} catch (IllegalAccessException e) {
+					writeError(e);
+				}
+			} catch (BufferOverflowException e) {
+				rewind(start, objectCount);
+				overflow();
+				buffer.put(TRUNCATED);
+				break;
+			}
+		}
+		buffer.put(END);
+	}
+
+	private void writeError(Throwable e) {
+		buffer.put(ERROR);
+		writeString(e.getClass().getName(), Integer.MAX_VALUE);
+		writeString(String.valueOf(e.getMessage()), limits.getMaxStringLength());
+	}
+
+	private void writeArray(Object array, int depth) {
+		buffer.put(ARRAY);
+		writeString(array.getClass().getComponentType().getName(), Integer.MAX_VALUE);
+		int length = java.lang.reflect.Array.getLength(array);
+		writeVarLong(length);
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			if (count == limits.getMaxElements() || full || expired()) {
+				buffer.put(TRUNCATED);
+				break;
+			}
+			int start = buffer.position();
+			int objectCount = objects.size();
+			try {
+				if (array instanceof Object[]) {
+					writeValue(((Object[]) array)[i], depth + 1);
+				} else {
+					// Boxes of primitives, without going through the depth check.
+					writeValue(java.lang.reflect.Array.get(array, i), 0);
+				}
+			} catch (BufferOverflowException e) {
+				rewind(start, objectCount);
+				overflow();
+				buffer.put(TRUNCATED);
+				break;
+			}
+			count++;
+		}
+		buffer.put(END);
+	}
+
+	private void writeElements(Iterator<?> iterator, boolean entries, int depth) {
+		int count = 0;
+		while (iterator.hasNext()) {
+			if (count == limits.getMaxElements() || full || expired()) {
+				buffer.put(TRUNCATED);
+				break;
+			}
+			Object element = iterator.next();
+			int start = buffer.position();
+			int objectCount = objects.size();
+			try {
+				if (entries) {
+					Map.Entry<?, ?> entry = (Map.Entry<?, ?>) element;
+					writeValue(entry.getKey(), depth + 1);
+					writeValue(entry.getValue(), depth + 1);
+				} else {
+					writeValue(element, depth + 1);
+				}
+			} catch (BufferOverflowException e) {
+				rewind(start, objectCount);
+				overflow();
+				buffer.put(TRUNCATED);
+				break;
+			}
+			count++;
+		}
+		buffer.put(END);
+	}
+
+	/**
+	 * Length in characters, the number of characters written, and these as UTF-8 (surrogates encoded separately).
+	 */
+	private void writeString(String s, int maxLength) {
+		int length = Math.min(s.length(), maxLength);
+		writeVarLong(s.length());
+		writeVarLong(length);
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xc0 | c >> 6));
+				buffer.put((byte) (0x80 | c & 0x3f));
+			} else {
+				buffer.put((byte) (0xe0 | c >> 12));
+				buffer.put((byte) (0x80 | c >> 6 & 0x3f));
+				buffer.put((byte) (0x80 | c & 0x3f));
+			}
+		}
+	}
+
+	private void writeVarLong(long value) {
+		while ((value & ~0x7fL) != 0) {
+			buffer.put((byte) (value & 0x7f | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private void writeSignedVarLong(long value) {
+		writeVarLong(value << 1 ^ value >> 63);
+	}
+
+	private static boolean isJdkClass(Class<?> c) {
+		return c.getName().startsWith("java.");
+	}
+
+	/**
+	 * Whether iterating over a collection or map of the class runs JDK code only. Nested classes are mostly views and
+	 * wrappers of other collections, these are walked field by field instead.
+	 */
+	private static boolean isPlainCollection(Class<?> c) {
+		return isJdkClass(c) && (c.getName().indexOf('$') < 0 || PLAIN_NESTED_COLLECTIONS.contains(c.getName()));
+	}
+
+	/**
+	 * Whether <code>toString()</code> of the class runs JDK code only, and shows the value.
+	 */
+	private static boolean isValueClass(Class<?> c) {
+		if (!isJdkClass(c)) {
+			return false;
+		}
+		// JDK exceptions print their message, the date and time classes of Java 8 have no references to other objects
+		return VALUE_CLASSES.contains(c.getName()) || Throwable.class.isAssignableFrom(c) || c.getName().startsWith("java.time.");
+	}
+}
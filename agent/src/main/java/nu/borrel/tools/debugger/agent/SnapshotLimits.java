@@ -0,0 +1,70 @@
+package nu.borrel.tools.debugger.agent;
+
+/**
+ * How much of the captured values a snapshot may contain.
+ */
+public final class SnapshotLimits {
+	public static final SnapshotLimits DEFAULT = new SnapshotLimits(3, 16, 32, 256, 16 * 1024, 50000);
+
+	// Deeper nesting could not be closed in the space the encoder keeps in reserve.
+	static final int MAX_DEPTH = 16;
+
+	private final int maxDepth;
+	private final int maxElements;
+	private final int maxFields;
+	private final int maxStringLength;
+	private final int maxBytes;
+	private final long maxTimeMicros;
+
+	/**
+	 * @param maxDepth how deep objects, collections, maps and arrays are followed, 0 for none
+	 * @param maxElements the number of elements taken from a collection, map or array
+	 * @param maxFields the number of fields taken from an object
+	 * @param maxStringLength the number of characters taken from a string
+	 * @param maxBytes the size of the encoded snapshot of one hit
+	 * @param maxTimeMicros the time spent on encoding one hit, after which the remaining values are left out
+	 */
+	public SnapshotLimits(int maxDepth, int maxElements, int maxFields, int maxStringLength, int maxBytes, long maxTimeMicros) {
+		if (maxDepth < 0 || maxDepth > MAX_DEPTH) {
+			throw new IllegalArgumentException("Depth must be between 0 and " + MAX_DEPTH + ": " + maxDepth);
+		}
+		if (maxElements < 0 || maxFields < 0 || maxStringLength < 0 || maxBytes < 256 || maxTimeMicros <= 0) {
+			throw new IllegalArgumentException("Invalid limits: " + maxElements + " elements, " + maxFields + " fields, " + maxStringLength + " characters, " + maxBytes + " bytes, " + maxTimeMicros + "us");
+		}
+		this.maxDepth = maxDepth;
+		this.maxElements = maxElements;
+		this.maxFields = maxFields;
+		this.maxStringLength = maxStringLength;
+		this.maxBytes = maxBytes;
+		this.maxTimeMicros = maxTimeMicros;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public int getMaxElements() {
+		return maxElements;
+	}
+
+	public int getMaxFields() {
+		return maxFields;
+	}
+
+	public int getMaxStringLength() {
+		return maxStringLength;
+	}
+
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getMaxTimeMicros() {
+		return maxTimeMicros;
+	}
+
+	@Override
+	public String toString() {
+		return "depth " + maxDepth + ", " + maxElements + " elements, " + maxFields + " fields, " + maxStringLength + " characters, " + maxBytes + " bytes, " + maxTimeMicros + "us";
+	}
+}
@@ -0,0 +1,172 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * How much of the stack a breakpoint records when hit.
+ *
+ * On VMs that have java.lang.StackWalker only the requested number of frames is walked, otherwise the frames come
+ * from a Throwable whose backtrace is only decoded when the {@link CapturedStack} is read. StackWalker is used
+ * reflectively, as the agent is built for older VMs. The walk function and the arguments of all reflective calls are
+ * created once per capture setting, so a hit neither boxes nor looks up anything.
+ */
+public final class StackCapture {
+	public enum Mode {
+		OFF, TOP, FULL,
+	}
+
+	public static final StackCapture OFF = new StackCapture(Mode.OFF, 0);
+	public static final StackCapture FULL = new StackCapture(Mode.FULL, Integer.MAX_VALUE);
+
+	// The frames of capture() itself and of the DebuggerAgent entrypoint calling it.
+	private static final int SKIP_FRAMES = 2;
+
+	private static final Object stackWalker;
+	private static final Method walk;
+	private static final Class<?> functionClass;
+	private static final Method apply;
+	private static final Method skip;
+	private static final Method limit;
+	private static final Method toArray;
+	private static final Method toStackTraceElement;
+
+	static {
+		Object walker = null;
+		Method walkMethod = null, applyMethod = null, skipMethod = null, limitMethod = null, toArrayMethod = null, toStackTraceElementMethod = null;
+		Class<?> function = null;
+		try {
+			Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+			function = Class.forName("java.util.function.Function");
+			Class<?> streamClass = Class.forName("java.util.stream.Stream");
+			walkMethod = walkerClass.getMethod("walk", function);
+			applyMethod = function.getMethod("apply", Object.class);
+			skipMethod = streamClass.getMethod("skip", long.class);
+			limitMethod = streamClass.getMethod("limit", long.class);
+			toArrayMethod = streamClass.getMethod("toArray");
+			toStackTraceElementMethod = Class.forName("java.lang.StackWalker$StackFrame").getMethod("toStackTraceElement");
+			walker = walkerClass.getMethod("getInstance").invoke(null);
+		} catch (Exception e) {
+			// Pre-9 VM: use Throwable backtraces.
+			walker = null;
+		}
+		stackWalker = walker;
+		walk = walkMethod;
+		functionClass = function;
+		apply = applyMethod;
+		skip = skipMethod;
+		limit = limitMethod;
+		toArray = toArrayMethod;
+		toStackTraceElement = toStackTraceElementMethod;
+	}
+
+	private final Mode mode;
+	private final int depth;
+	// Frames skipped besides SKIP_FRAMES
+	private final int skipFrames;
+	// The arguments of walk(): the function, null without StackWalker
+	private final Object[] walkArguments;
+
+	private StackCapture(Mode mode, int depth) {
+		this(mode, depth, 0);
+	}
+
+	private StackCapture(Mode mode, int depth, int skipFrames) {
+		this.mode = mode;
+		this.depth = depth;
+		this.skipFrames = skipFrames;
+		this.walkArguments = stackWalker != null && mode != Mode.OFF ? new Object[] { createWalkFunction(SKIP_FRAMES + skipFrames, depth) } : null;
+	}
+
+	public static StackCapture create(Mode mode, int depth) {
+		switch (mode) {
+		case OFF:
+			return OFF;
+		case FULL:
+			return FULL;
+		default:
+			if (depth <= 0) {
+				throw new IllegalArgumentException("Depth must be positive: " + depth);
+			}
+			return new StackCapture(mode, depth);
+		}
+	}
+
+	/**
+	 * Like {@link #create(Mode, int)} with {@link Mode#TOP}, but starting the given number of frames further up the
+	 * stack.
+	 */
+	static StackCapture create(int depth, int skipFrames) {
+		return new StackCapture(Mode.TOP, depth, skipFrames);
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Captures the stack starting at the caller of the method calling this, or returns <code>null</code> when
+	 * capturing is off.
+	 */
+	public CapturedStack capture() {
+		if (mode == Mode.OFF) {
+			return null;
+		}
+		if (walkArguments != null) {
+			try {
+				return new CapturedStack(walk.invoke(stackWalker, walkArguments), 0, depth);
+			} catch (Exception e) {
+				// Fall through to the Throwable.
+			}
+		}
+		return new CapturedStack(new Throwable(), SKIP_FRAMES + skipFrames, depth);
+	}
+
+	static StackTraceElement[] toStackTraceElements(Object[] frames) {
+		StackTraceElement[] elements = new StackTraceElement[frames.length];
+		Object[] noArguments = new Object[0];
+		try {
+			for (int i = 0; i < frames.length; i++) {
+				elements[i] = (StackTraceElement) toStackTraceElement.invoke(frames[i], noArguments);
+			}
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot decode stack frames", e);
+		}
+		return elements;
+	}
+
+	private static Object createWalkFunction(int skipFrames, final int depth) {
+		// Function<Stream<StackFrame>, Object[]>: s -> s.skip(skipFrames).limit(depth).toArray()
+		final Object[] skipArguments = { Long.valueOf(skipFrames) };
+		final Object[] limitArguments = { Long.valueOf(depth) };
+		final Object[] noArguments = new Object[0];
+		return Proxy.newProxyInstance(StackCapture.class.getClassLoader(), new Class<?>[] { functionClass }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.equals(apply)) {
+					Object stream = skip.invoke(args[0], skipArguments);
+					stream = limit.invoke(stream, limitArguments);
+					return toArray.invoke(stream, noArguments);
+				} else if ("equals".equals(method.getName())) {
+					return Boolean.valueOf(proxy == args[0]);
+				} else if ("hashCode".equals(method.getName())) {
+					return Integer.valueOf(System.identityHashCode(proxy));
+				} else if ("toString".equals(method.getName())) {
+					return "StackCapture(" + depth + ")";
+				}
+				// compose() and andThen(), which StackWalker doesn't use
+				throw new UnsupportedOperationException(method.toString());
+			}
+		});
+	}
+
+	@Override
+	public String toString() {
+		return mode == Mode.TOP ? mode + " " + depth : mode.toString();
+	}
+}
@@ -0,0 +1,46 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads increments from different threads over separate cache lines.
+ */
+public final class StripedCounter {
+	// Longs per cache line, so that neighbouring stripes don't share one.
+	private static final int PADDING = 8;
+	private static final int STRIPES = stripes();
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	private static int stripes() {
+		int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors());
+		return stripes < Runtime.getRuntime().availableProcessors() ? stripes * 2 : stripes;
+	}
+
+	/**
+	 * Increments the stripe of the current thread, and returns the new value of that stripe.
+	 */
+	public long increment() {
+		return cells.incrementAndGet(stripe());
+	}
+
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	public void reset() {
+		for (int i = 0; i < STRIPES; i++) {
+			cells.set(i * PADDING, 0);
+		}
+	}
+
+	private static int stripe() {
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return ((hash >>> 16) & (STRIPES - 1)) * PADDING;
+	}
+}
@@ -0,0 +1,152 @@
+package nu.borrel.tools.debugger.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Approximate counts of the most frequent keys, with a variant of the space-saving algorithm: keys are counted in a
+ * fixed table of slots, and a key that finds no free slot near its hash replaces the least frequent key there, taking
+ * over its count as possible overestimate.
+ *
+ * Adding a key takes a compare-and-set when it claims a slot and an atomic increment, and needs no locks. Keys are
+ * kept as they are given, so they must have cheap and side effect free <code>equals()</code> and
+ * <code>hashCode()</code>; turning them into text is left to whoever reads the counts.
+ */
+public final class TopK {
+	// Slots looked at for a key, starting at the one of its hash
+	private static final int PROBES = 4;
+	// Slots per key reported, so that keys rarely compete for slots
+	private static final int SLOTS_PER_KEY = 8;
+
+	public static final class Entry {
+		private final Object key;
+		private final long count;
+		private final long error;
+
+		Entry(Object key, long count, long error) {
+			this.key = key;
+			this.count = count;
+			this.error = error;
+		}
+
+		public Object getKey() {
+			return key;
+		}
+
+		/**
+		 * The count, at most {@link #getError()} too high.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		public long getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + count + (error > 0 ? " (+-" + error + ")" : "");
+		}
+	}
+
+	private final int capacity;
+	private final int mask;
+	private final AtomicReferenceArray<Object> keys;
+	private final AtomicLongArray counts;
+	// The count of the slot when its key was replaced
+	private final AtomicLongArray errors;
+
+	public TopK(int capacity) {
+		this.capacity = capacity;
+		int slots = Integer.highestOneBit(Math.max(PROBES, capacity * SLOTS_PER_KEY) - 1) << 1;
+		this.mask = slots - 1;
+		this.keys = new AtomicReferenceArray<Object>(slots);
+		this.counts = new AtomicLongArray(slots);
+		this.errors = new AtomicLongArray(slots);
+	}
+
+	public void add(Object key) {
+		int hash = key.hashCode() * 0x9E3779B9;
+		int start = hash ^ (hash >>> 16);
+		while (true) {
+			int minSlot = -1;
+			Object minKey = null;
+			long minCount = Long.MAX_VALUE;
+			for (int i = 0; i < PROBES; i++) {
+				int slot = (start + i) & mask;
+				Object current = keys.get(slot);
+				if (current == null) {
+					if (keys.compareAndSet(slot, null, key)) {
+						counts.incrementAndGet(slot);
+						return;
+					}
+					current = keys.get(slot);
+				}
+				if (current == key || current.equals(key)) {
+					counts.incrementAndGet(slot);
+					return;
+				}
+				long count = counts.get(slot);
+				if (count < minCount) {
+					minSlot = slot;
+					minKey = current;
+					minCount = count;
+				}
+			}
+			// Only one thread replaces the key, the others look again.
+			if (keys.compareAndSet(minSlot, minKey, key)) {
+				errors.set(minSlot, minCount);
+				counts.incrementAndGet(minSlot);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The most frequent keys, most frequent first.
+	 */
+	public List<Entry> top() {
+		// A key can briefly end up in two slots when threads add it concurrently.
+		Map<Object, long[]> merged = new HashMap<Object, long[]>();
+		for (int slot = 0; slot <= mask; slot++) {
+			Object key = keys.get(slot);
+			long count = counts.get(slot);
+			if (key == null || count == 0) {
+				continue;
+			}
+			long[] total = merged.get(key);
+			if (total == null) {
+				merged.put(key, new long[] { count, errors.get(slot) });
+			} else {
+				total[0] += count;
+				total[1] += errors.get(slot);
+			}
+		}
+		List<Entry> entries = new ArrayList<Entry>(merged.size());
+		for (Map.Entry<Object, long[]> entry : merged.entrySet()) {
+			entries.add(new Entry(entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+		}
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry o1, Entry o2) {
+				return o1.count < o2.count ? 1 : o1.count > o2.count ? -1 : 0;
+			}
+		});
+		return entries.size() > capacity ? entries.subList(0, capacity) : entries;
+	}
+
+	public void reset() {
+		for (int slot = 0; slot <= mask; slot++) {
+			keys.set(slot, null);
+			counts.set(slot, 0);
+			errors.set(slot, 0);
+		}
+	}
+}
@@ -1,68 +1,213 @@
 package nu.borrel.tools.debugger.agent.asm;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import nu.borrel.tools.debugger.agent.Breakpoint;
+import nu.borrel.tools.debugger.agent.MethodTrace;
 import nu.borrel.tools.debugger.agent.asm.asm4.ClassReader;
-import nu.borrel.tools.debugger.agent.asm.asm4.ClassVisitor;
 import nu.borrel.tools.debugger.agent.asm.asm4.ClassWriter;
+import nu.borrel.tools.debugger.agent.asm.asm4.Opcodes;
 
 public class BreakpointClassFileTransformer implements ClassFileTransformer {
+	// Shared by all transformers, so that one created again for a class never reuses the cached results of the last
+	private static final AtomicInteger versions = new AtomicInteger();
+
 	private final String className;
-	private final Map<String, Integer> breakpoints = new HashMap<String, Integer>();
+	// By method name for breakpoints in all overloads, by method name + descriptor for those in one
+	private final ConcurrentMap<String, MethodBreakpoints> breakpoints = new ConcurrentHashMap<String, MethodBreakpoints>();
+	private final List<Breakpoint> patternBreakpoints = new CopyOnWriteArrayList<Breakpoint>();
+	// By method name for all overloads, by method name + descriptor for one
+	private final ConcurrentMap<String, MethodTrace> traces = new ConcurrentHashMap<String, MethodTrace>();
+	private final ClassDumper dumper;
+	private final TransformOptions options;
+	private final TypeHierarchy hierarchy;
+	private final TransformCache cache;
+	// Taken anew whenever the breakpoints change, so that older cached results no longer match
+	private volatile int version = versions.incrementAndGet();
+	// The class file last handed to transform(), by defining loader, while the class has breakpoints or traces. The JVM
+	// passes these same bytes again on the next retransformation. The class file from the loader usually differs, as
+	// the JVM reconstitutes the bytes of classes that no agent changed while loading.
+	private final Map<ClassLoader, byte[]> originals = Collections.synchronizedMap(new WeakHashMap<ClassLoader, byte[]>());
 	
-	public BreakpointClassFileTransformer(String className) {
+	public BreakpointClassFileTransformer(String className, ClassDumper dumper, TransformOptions options, TypeHierarchy hierarchy, TransformCache cache) {
 		this.className = className.replaceAll("\\.", "/");
+		this.dumper = dumper;
+		this.options = options;
+		this.hierarchy = hierarchy;
+		this.cache = cache;
 	}
 	
 	@Override
 	public byte[] transform(ClassLoader loader, final String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
-		if (this.className.equals(className)) {
-			System.out.println("[" + className + "]: Transforming");
-			try {
-				// Phase 1: collect information about labels and local variables
-				ClassReader cr = new ClassReader(classfileBuffer);
-				CollectorClassVisitor collector = new CollectorClassVisitor(breakpoints, className);
-				cr.accept(collector, 0);
-				
-				ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES|ClassWriter.COMPUTE_MAXS);
-				// Unfold all matched breakpoint information into separate visitors, and chain them.
-				ClassVisitor cv = cw;
-				for (BreakpointDescriptor bd : collector.getBreakpointDescriptors()) {
-					cv = new BreakpointClassVisitor(cv, bd);
-				}
-				// Phase 2: write the new class
-				cr = new ClassReader(classfileBuffer);
-				cr.accept(cv, ClassReader.EXPAND_FRAMES);
-				
-				byte[] bytes = cw.toByteArray();
-				
-				// DEBUG
-				File tmpFile = File.createTempFile("debug", ".class");
-				System.out.println("Dumping into " + tmpFile.getAbsolutePath());
-				FileOutputStream fos = new FileOutputStream(tmpFile);
+		if (!this.className.equals(className)) {
+			return null;
+		}
+		byte[] bytes = instrumentCached(loader, classfileBuffer);
+		if (bytes != null) {
+			originals.put(loader, classfileBuffer);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Whether there is nothing left to place in the class.
+	 */
+	public boolean isEmpty() {
+		return breakpoints.isEmpty() && patternBreakpoints.isEmpty() && traces.isEmpty();
+	}
+
+	/**
+	 * Whether the class has only pattern breakpoints, which the {@link nu.borrel.tools.debugger.agent.BreakpointPatterns}
+	 * can add to a new transformer again.
+	 */
+	public boolean hasOnlyPatternBreakpoints() {
+		return breakpoints.isEmpty() && traces.isEmpty();
+	}
+
+	/**
+	 * The class file seen last for the given loader, <code>null</code> if the class was not transformed yet.
+	 */
+	public byte[] getOriginal(ClassLoader loader) {
+		return originals.get(loader);
+	}
+
+	/**
+	 * Instruments the given class file ahead of a retransformation, so that {@link #transform} finds the result in the
+	 * cache when it gets the same bytes.
+	 */
+	public void precompute(ClassLoader loader, byte[] classfileBuffer) {
+		instrumentCached(loader, classfileBuffer);
+	}
+
+	private byte[] instrumentCached(ClassLoader loader, byte[] classfileBuffer) {
+		int version = this.version;
+		// Read once, so that the result is cached under the mode it was written with.
+		boolean computeFrames = options.isComputeFrames();
+		long hash = TransformCache.hash(classfileBuffer);
+		byte[] bytes = cache.get(className, version, computeFrames, hash, classfileBuffer.length);
+		if (bytes == null) {
+			bytes = instrument(loader, classfileBuffer, computeFrames);
+			if (bytes != null) {
+				cache.put(className, version, computeFrames, hash, classfileBuffer.length, bytes);
+			}
+		}
+		return bytes;
+	}
+
+	private byte[] instrument(ClassLoader loader, byte[] classfileBuffer, boolean computeFrames) {
+		System.out.println("[" + className + "]: Transforming");
+		try {
+			// Phase 1: collect labels and local variables, but only of the methods with breakpoints.
+			// The collector skips the code of all other methods, and needs no frames.
+			ClassReader cr = new ClassReader(classfileBuffer);
+			CollectorClassVisitor collector = new CollectorClassVisitor(breakpoints, patternBreakpoints, className);
+			cr.accept(collector, ClassReader.SKIP_FRAMES);
+			
+			// Phase 2: write the new class, with all breakpoints handled by a single visitor.
+			Map<String, List<BreakpointDescriptor>> descriptors = collector.getBreakpointDescriptors();
+			if (descriptors.isEmpty() && traces.isEmpty()) {
+				// Nothing to place, for instance a pattern matched the class but none of its methods.
+				return null;
+			}
+			byte[] bytes;
+			// The exception handlers of traced methods need frames the incremental frames cannot provide.
+			if (computeFrames || !traces.isEmpty()) {
+				bytes = write(loader, cr, descriptors, true);
+			} else {
 				try {
-					fos.write(bytes);
-				} finally {
-					fos.close();
+					bytes = write(loader, cr, descriptors, false);
+				} catch (RuntimeException e) {
+					System.out.println("[" + className + "]: Cannot add frames (" + e + "), computing them instead");
+					bytes = write(loader, cr, descriptors, true);
 				}
-				// END-DEBUG
-				
-				return bytes;
-			} catch (Throwable t) {
-				System.err.println("Caught throwable");
-				t.printStackTrace();
 			}
+			dumper.dump(className, bytes);
+			return bytes;
+		} catch (Throwable t) {
+			System.err.println("Caught throwable");
+			t.printStackTrace();
 		}
 		return null;
 	}
 	
-	public void addBreakpoint(String methodName, int pc) {
-		breakpoints.put(methodName, pc);
+	private byte[] write(ClassLoader loader, ClassReader cr, Map<String, List<BreakpointDescriptor>> descriptors, boolean computeFrames) {
+		// Passing the reader lets the writer copy the constant pool, and all methods without breakpoints, as they are.
+		ClassWriter cw;
+		if (computeFrames) {
+			hierarchy.add(loader, cr);
+			cw = new HierarchyClassWriter(cr, ClassWriter.COMPUTE_FRAMES, hierarchy, loader);
+			cr.accept(new BreakpointClassVisitor(cw, descriptors, traces, false), ClassReader.SKIP_FRAMES);
+		} else if (cr.readUnsignedShort(6) < Opcodes.V1_6) {
+			// No stack map frames before Java 6, only the maximum stack size needs updating.
+			cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
+			cr.accept(new BreakpointClassVisitor(cw, descriptors, traces, false), 0);
+		} else {
+			// The existing frames stay, the visitor adds the ones for the injected code.
+			cw = new ClassWriter(cr, 0);
+			cr.accept(new BreakpointClassVisitor(cw, descriptors, traces, true), ClassReader.EXPAND_FRAMES);
+		}
+		try {
+			return cw.toByteArray();
+		} finally {
+			cw.release();
+		}
+	}
+	
+	public synchronized void addBreakpoint(Breakpoint breakpoint) {
+		if (breakpoint.isPattern()) {
+			patternBreakpoints.add(breakpoint);
+		} else {
+			String key = breakpoint.getMethodDesc() != null ? breakpoint.getMethodName() + breakpoint.getMethodDesc() : breakpoint.getMethodName();
+			MethodBreakpoints methodBreakpoints = breakpoints.get(key);
+			breakpoints.put(key, (methodBreakpoints != null ? methodBreakpoints : MethodBreakpoints.EMPTY).add(breakpoint));
+		}
+		version = versions.incrementAndGet();
+	}
+
+	public synchronized void removeBreakpoint(Breakpoint breakpoint) {
+		if (breakpoint.isPattern()) {
+			patternBreakpoints.remove(breakpoint);
+		} else {
+			String key = breakpoint.getMethodDesc() != null ? breakpoint.getMethodName() + breakpoint.getMethodDesc() : breakpoint.getMethodName();
+			MethodBreakpoints methodBreakpoints = breakpoints.get(key);
+			if (methodBreakpoints != null) {
+				methodBreakpoints = methodBreakpoints.remove(breakpoint);
+				if (methodBreakpoints.size() == 0) {
+					breakpoints.remove(key);
+				} else {
+					breakpoints.put(key, methodBreakpoints);
+				}
+			}
+		}
+		version = versions.incrementAndGet();
+		releaseOriginals();
+	}
+
+	public synchronized void addTrace(MethodTrace trace) {
+		traces.put(trace.getMethodDesc() != null ? trace.getMethodName() + trace.getMethodDesc() : trace.getMethodName(), trace);
+		version = versions.incrementAndGet();
+	}
+
+	public synchronized void removeTrace(MethodTrace trace) {
+		traces.remove(trace.getMethodDesc() != null ? trace.getMethodName() + trace.getMethodDesc() : trace.getMethodName(), trace);
+		version = versions.incrementAndGet();
+		releaseOriginals();
+	}
+
+	private void releaseOriginals() {
+		if (isEmpty()) {
+			// The next retransformation restores the class, there is nothing to precompute for it.
+			originals.clear();
+		}
 	}
-}
\ No newline at end of file
+}
@@ -1,124 +1,388 @@
 package nu.borrel.tools.debugger.agent.asm;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import nu.borrel.tools.debugger.agent.CaptureLayout;
+import nu.borrel.tools.debugger.agent.MethodTrace;
 import nu.borrel.tools.debugger.agent.asm.BreakpointDescriptor.LocalVariable;
 import nu.borrel.tools.debugger.agent.asm.asm4.ClassVisitor;
+import nu.borrel.tools.debugger.agent.asm.asm4.Handle;
 import nu.borrel.tools.debugger.agent.asm.asm4.Label;
 import nu.borrel.tools.debugger.agent.asm.asm4.MethodVisitor;
 import nu.borrel.tools.debugger.agent.asm.asm4.Opcodes;
 import nu.borrel.tools.debugger.agent.asm.asm4.Type;
-import nu.borrel.tools.debugger.agent.asm.asm4.commons.LocalVariablesSorter;
-import nu.borrel.tools.debugger.agent.asm.asm4.util.TraceClassVisitor;
+import nu.borrel.tools.debugger.agent.asm.asm4.commons.AnalyzerAdapter;
 
+/**
+ * Injects all breakpoints of a class, methods without breakpoints are passed through to the writer untouched.
+ */
 class BreakpointClassVisitor extends ClassVisitor implements Opcodes {
-	private final BreakpointDescriptor descriptor;
+	private static final String CAPTURE_BUFFER = "nu/borrel/tools/debugger/agent/CaptureBuffer";
+	// Largest number of stack words the injected code needs on top of what is already on the stack:
+	// buffer, slot and a long/double value, or two long/double operands of a condition.
+	private static final int INJECTED_MAX_STACK = 4;
+
+	// By method name + descriptor
+	private final Map<String, List<BreakpointDescriptor>> descriptors;
+	// By method name, and by method name + descriptor
+	private final Map<String, MethodTrace> traces;
+	private final boolean writeFrames;
+	private String owner;
 	
-	public BreakpointClassVisitor(ClassVisitor cv, BreakpointDescriptor descriptor) throws FileNotFoundException {
-		super(ASM4, new TraceClassVisitor(cv, new PrintWriter(new File("/tmp/output.txt"))));
-		this.descriptor = descriptor;
+	/**
+	 * With <code>writeFrames</code> the visitor emits the stack map frames and maximum stack size for the injected code
+	 * itself, and expects the reader to expand frames. Otherwise the writer must compute them, which is always the case
+	 * for classes with traced methods.
+	 */
+	public BreakpointClassVisitor(ClassVisitor cv, Map<String, List<BreakpointDescriptor>> descriptors, Map<String, MethodTrace> traces, boolean writeFrames) {
+		super(ASM4, cv);
+		this.descriptors = descriptors;
+		this.traces = traces;
+		this.writeFrames = writeFrames;
+	}
+
+	@Override
+	public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+		this.owner = name;
+		super.visit(version, access, name, signature, superName, interfaces);
 	}
 
 	@Override
-	public MethodVisitor visitMethod(final int access, final String name, String desc, String signature, String[] exceptions) {
+	public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
 		MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
-		if (name.equals(descriptor.getMethodName())) {
-			mv = new LocalVariablesSorter(access, desc, mv) {
-				@Override
-				public void visitLabel(Label label) {
-					// Ideally we insert before the existing label, so that debug information stays stable.
-					// But: this could mean we get jumped over!
-					super.visitLabel(label);
-					if (label.getLine() == descriptor.getLabel().getLine()) {
-						inject();
-					}
+		MethodTrace trace = traces.isEmpty() ? null : traces.get(name + desc);
+		if (trace == null && !traces.isEmpty()) {
+			trace = traces.get(name);
+		}
+		if (trace != null && mv != null && (access & (ACC_ABSTRACT | ACC_NATIVE)) == 0) {
+			// After the breakpoints, so that the renumbered locals apply to their code as well.
+			mv = new TraceMethodAdapter(mv, access, name, desc, trace.getId());
+		}
+		List<BreakpointDescriptor> methodDescriptors = descriptors.get(name + desc);
+		if (methodDescriptors == null) {
+			// Returning the writer's own visitor lets it copy the method without parsing it, unless it is traced.
+			return mv;
+		}
+		BreakpointMethodVisitor bmv = new BreakpointMethodVisitor(mv, access, name, methodDescriptors);
+		if (!writeFrames) {
+			return bmv;
+		}
+		bmv.analyzer = new AnalyzerAdapter(owner, access, name, desc, bmv);
+		return bmv.analyzer;
+	}
+
+	private class BreakpointMethodVisitor extends MethodVisitor {
+		private final int methodAccess;
+		private final String methodName;
+		private final Map<Integer, List<BreakpointDescriptor>> descriptorsByLine = new HashMap<Integer, List<BreakpointDescriptor>>();
+		// Tracks the frame of the original code, null when the writer computes frames.
+		private AnalyzerAdapter analyzer;
+		private List<BreakpointDescriptor> pending;
+		private boolean injecting;
+		private Object[] frameLocals;
+		private Object[] frameStack;
+		private boolean frameNeeded;
+		private boolean frameSeen;
+		private int maxStack;
+		// In constructors 'this' can't be used before the call to the super or another constructor. That call is the
+		// first constructor call that doesn't belong to a NEW.
+		private boolean thisInitialized;
+		private int pendingNews;
+
+		BreakpointMethodVisitor(MethodVisitor mv, int access, String name, List<BreakpointDescriptor> methodDescriptors) {
+			super(ASM4, mv);
+			this.methodAccess = access;
+			this.methodName = name;
+			this.thisInitialized = !"<init>".equals(name);
+			for (BreakpointDescriptor descriptor : methodDescriptors) {
+				List<BreakpointDescriptor> lineDescriptors = descriptorsByLine.get(descriptor.getLabel().getLine());
+				if (lineDescriptors == null) {
+					lineDescriptors = new ArrayList<BreakpointDescriptor>();
+					descriptorsByLine.put(descriptor.getLabel().getLine(), lineDescriptors);
 				}
-				
-				private void inject() {
-					// Dump all local variables into a Map, and provide that map to the agent call as well
-					Iterator<LocalVariable> it = descriptor.getLocalVariables().iterator();
-					int localIndex = -1;					
-					mv.visitMethodInsn(INVOKESPECIAL, "java/util/HashMap", "<init>", "()V");
-					localIndex = newLocal(Type.getObjectType("java/util/HashMap"));
-					mv.visitVarInsn(ASTORE, localIndex);
-					if (it.hasNext()) {
-						for (LocalVariable lv : descriptor.getLocalVariables()) {
-							mv.visitVarInsn(ALOAD, localIndex);
-							mv.visitLdcInsn(lv.getName());
-							loadLocalVariableValueAsObject(lv);
-							mv.visitMethodInsn(INVOKEVIRTUAL, "java/util/HashMap", "put", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
-							mv.visitInsn(POP);
-						}
-					}
-					visitFieldInsn(GETSTATIC, "nu/borrel/tools/debugger/agent/DebuggerAgent", "instance", "Lnu/borrel/tools/debugger/agent/DebuggerAgent;");
-					visitInsn(POP);
-					if ((access & ACC_STATIC) != 0) {
-						visitLdcInsn(Type.getType("L" + descriptor.getClassName() + ";"));
-					} else {
-						visitVarInsn(ALOAD, 0);
+				lineDescriptors.add(descriptor);
+			}
+		}
+
+		@Override
+		public void visitLabel(Label label) {
+			if (injecting) {
+				// Jump target inside the injected code, it has the same frame as the start of the line.
+				super.visitLabel(label);
+				frameNeeded = analyzer != null;
+				return;
+			}
+			beforeCode();
+			super.visitLabel(label);
+			if (label.getLine() != 0 && !descriptorsByLine.isEmpty()) {
+				// Only the first label of a line gets the breakpoints. They are injected before the first instruction
+				// after it, so that a frame of the label stays in front of the injected code.
+				List<BreakpointDescriptor> lineDescriptors = descriptorsByLine.remove(label.getLine());
+				if (lineDescriptors != null) {
+					pending = lineDescriptors;
+				}
+			}
+		}
+
+		@Override
+		public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+			// An original frame right after the injected code describes the same offset, and replaces ours.
+			frameNeeded = false;
+			frameSeen = true;
+			super.visitFrame(type, nLocal, local, nStack, stack);
+		}
+
+		@Override
+		public void visitInsn(int opcode) {
+			beforeInstruction();
+			super.visitInsn(opcode);
+		}
+
+		@Override
+		public void visitIntInsn(int opcode, int operand) {
+			beforeInstruction();
+			super.visitIntInsn(opcode, operand);
+		}
+
+		@Override
+		public void visitVarInsn(int opcode, int var) {
+			beforeInstruction();
+			super.visitVarInsn(opcode, var);
+		}
+
+		@Override
+		public void visitTypeInsn(int opcode, String type) {
+			beforeInstruction();
+			super.visitTypeInsn(opcode, type);
+			if (opcode == NEW && !thisInitialized) {
+				pendingNews++;
+			}
+		}
+
+		@Override
+		public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+			beforeInstruction();
+			super.visitFieldInsn(opcode, owner, name, desc);
+		}
+
+		@Override
+		public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+			beforeInstruction();
+			super.visitMethodInsn(opcode, owner, name, desc);
+			if (opcode == INVOKESPECIAL && !thisInitialized && "<init>".equals(name)) {
+				if (pendingNews > 0) {
+					pendingNews--;
+				} else {
+					thisInitialized = true;
+				}
+			}
+		}
+
+		@Override
+		public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+			beforeInstruction();
+			super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+		}
+
+		@Override
+		public void visitJumpInsn(int opcode, Label label) {
+			beforeInstruction();
+			super.visitJumpInsn(opcode, label);
+		}
+
+		@Override
+		public void visitLdcInsn(Object cst) {
+			beforeInstruction();
+			super.visitLdcInsn(cst);
+		}
+
+		@Override
+		public void visitIincInsn(int var, int increment) {
+			beforeInstruction();
+			super.visitIincInsn(var, increment);
+		}
+
+		@Override
+		public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+			beforeInstruction();
+			super.visitTableSwitchInsn(min, max, dflt, labels);
+		}
+
+		@Override
+		public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+			beforeInstruction();
+			super.visitLookupSwitchInsn(dflt, keys, labels);
+		}
+
+		@Override
+		public void visitMultiANewArrayInsn(String desc, int dims) {
+			beforeInstruction();
+			super.visitMultiANewArrayInsn(desc, dims);
+		}
+
+		@Override
+		public void visitMaxs(int maxStack, int maxLocals) {
+			super.visitMaxs(Math.max(maxStack, this.maxStack), maxLocals);
+		}
+
+		private void beforeInstruction() {
+			if (analyzer != null && !frameSeen) {
+				// The writer takes the first frame for the implicit one of the method. The reader only visits that
+				// when the method has a stack map table, after the first label and before the first instruction:
+				// when there was none by now, the method has no frames.
+				frameSeen = true;
+				Object[] locals = toFrameTypes(analyzer.locals);
+				super.visitFrame(F_NEW, locals.length, locals, 0, new Object[0]);
+			}
+			beforeCode();
+		}
+
+		/**
+		 * Injects the pending breakpoints, and the frame after injected code.
+		 */
+		private void beforeCode() {
+			if (pending != null && !injecting) {
+				List<BreakpointDescriptor> lineDescriptors = pending;
+				pending = null;
+				if (analyzer != null) {
+					if (analyzer.locals == null) {
+						// Unreachable code
+						return;
 					}
-					if (localIndex >= 0) {
-						visitVarInsn(ALOAD, localIndex);
-					} else {
-						visitInsn(ACONST_NULL);
+					frameLocals = toFrameTypes(analyzer.locals);
+					frameStack = toFrameTypes(analyzer.stack);
+					maxStack = Math.max(maxStack, analyzer.stack.size() + INJECTED_MAX_STACK);
+				}
+				injecting = true;
+				try {
+					for (BreakpointDescriptor descriptor : lineDescriptors) {
+						inject(descriptor);
 					}
-					visitLdcInsn(name);
-					// XXX: SIPUSH/BIPUSH or LDC new Integer() depending on size.
-					visitIntInsn(SIPUSH, descriptor.getLine());
-					visitMethodInsn(INVOKESTATIC, "nu/borrel/tools/debugger/agent/DebuggerAgent", "breakpointHit", "(Ljava/lang/Object;Ljava/util/Map;Ljava/lang/String;I)V");
+				} finally {
+					injecting = false;
 				}
-				
-				private void loadLocalVariableValueAsObject(LocalVariable lv) {
-					// The lv.getIndex() refers to *original* offsets, and so needs remapping
-					// Depending on lv.getDesc() we need to use a different approach here to load it:
-					// I/D/L/F etc need to go via their own valueOf method.
-					Type type = Type.getType(lv.getDesc());
-					switch (type.getSort()) {
-					case Type.BOOLEAN:
-						visitVarInsn(ILOAD, lv.getIndex());
-						mv.visitMethodInsn(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
-						break;
-					case Type.CHAR:
-						visitVarInsn(ILOAD, lv.getIndex());
-						mv.visitMethodInsn(INVOKESTATIC, "java/lang/Character", "valueOf", "(C)Ljava/lang/Character;");
-						break;
-					case Type.BYTE:
-						visitVarInsn(ILOAD, lv.getIndex());
-						mv.visitMethodInsn(INVOKESTATIC, "java/lang/Short", "valueOf", "(B)Ljava/lang/Byte;");
-						break;
-					case Type.SHORT:
-						visitVarInsn(ILOAD, lv.getIndex());
-						mv.visitMethodInsn(INVOKESTATIC, "java/lang/Short", "valueOf", "(S)Ljava/lang/Short;");
-						break;
-					case Type.INT:
-						visitVarInsn(ILOAD, lv.getIndex());
-						mv.visitMethodInsn(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;");
-						break;
-					case Type.FLOAT:
-						visitVarInsn(FLOAD, lv.getIndex());
-						mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "valueOf", "(F)Ljava/lang/Float;");
-						break;
-					case Type.LONG:
-						visitVarInsn(LLOAD, lv.getIndex());
-						mv.visitMethodInsn(INVOKESTATIC, "java/lang/Long", "valueOf", "(L)Ljava/lang/Long;");
-						break;
-					case Type.DOUBLE:
-						visitVarInsn(DLOAD, lv.getIndex());
-						mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
-						break;
-					case Type.ARRAY:
-						visitVarInsn(AALOAD, lv.getIndex());
-						break;
-					case Type.OBJECT:
-						visitVarInsn(ALOAD, lv.getIndex());
-						break;
-					}					
+			}
+			if (frameNeeded) {
+				frameNeeded = false;
+				super.visitFrame(F_NEW, frameLocals.length, frameLocals, frameStack.length, frameStack);
+			}
+		}
+
+		private Object[] toFrameTypes(List<Object> types) {
+			// The analyzer uses two entries for long and double values, frames only one.
+			List<Object> frameTypes = new ArrayList<Object>(types.size());
+			for (int i = 0; i < types.size(); i++) {
+				Object type = types.get(i);
+				frameTypes.add(type);
+				if (LONG.equals(type) || DOUBLE.equals(type)) {
+					i++;
 				}
-			};
+			}
+			return frameTypes.toArray();
+		}
+
+		private void inject(BreakpointDescriptor descriptor) {
+			Label skip = new Label();
+			boolean isStatic = (methodAccess & ACC_STATIC) != 0;
+			Condition condition = descriptor.getBreakpoint().getCondition();
+			if (condition != null) {
+				ConditionCompiler compiler;
+				try {
+					compiler = new ConditionCompiler(condition, descriptor, isStatic, thisInitialized);
+				} catch (IllegalArgumentException e) {
+					System.out.println("Cannot set breakpoint " + descriptor.getBreakpoint() + ": " + e.getMessage());
+					return;
+				}
+				compiler.compile(this, skip);
+			}
+			
+			List<String> names = new ArrayList<String>();
+			List<String> descs = new ArrayList<String>();
+			List<Integer> slots = new ArrayList<Integer>();
+			for (LocalVariable lv : descriptor.getLocalVariables()) {
+				if (!isStatic && !thisInitialized && lv.getIndex() == 0) {
+					continue;
+				}
+				names.add(lv.getName());
+				descs.add(lv.getDesc());
+				slots.add(lv.getIndex());
+			}
+			int[] slotArray = new int[slots.size()];
+			for (int i = 0; i < slotArray.length; i++) {
+				slotArray[i] = slots.get(i);
+			}
+			CaptureLayout layout = CaptureLayout.register(descriptor.getBreakpoint(), descriptor.getClassName().replace('/', '.'), methodName,
+					names.toArray(new String[names.size()]), descs.toArray(new String[descs.size()]), slotArray);
+			
+			// Hit count, sampling and rate limits of the breakpoint
+			pushInt(layout.getId());
+			visitMethodInsn(INVOKESTATIC, "nu/borrel/tools/debugger/agent/DebuggerAgent", "breakpointGuard", "(I)Z");
+			visitJumpInsn(IFEQ, skip);
+			
+			// Write all local variables into the per-thread capture buffer, and hand that to the agent.
+			// The buffer stays on the operand stack, so no locals and no allocations are needed.
+			pushInt(layout.getSize());
+			visitMethodInsn(INVOKESTATIC, CAPTURE_BUFFER, "acquire", "(I)L" + CAPTURE_BUFFER + ";");
+			for (int i = 0; i < layout.getVariableCount(); i++) {
+				pushInt(layout.getSlot(i));
+				storeLocalVariable(Type.getType(layout.getDesc(i)), layout.getSlot(i));
+			}
+			if (isStatic) {
+				visitLdcInsn(Type.getType("L" + descriptor.getClassName() + ";"));
+			} else if (!thisInitialized) {
+				visitInsn(ACONST_NULL);
+			} else {
+				visitVarInsn(ALOAD, 0);
+			}
+			pushInt(layout.getId());
+			visitMethodInsn(INVOKESTATIC, "nu/borrel/tools/debugger/agent/DebuggerAgent", "breakpointHit", "(L" + CAPTURE_BUFFER + ";Ljava/lang/Object;I)V");
+			visitLabel(skip);
+		}
+		
+		private void storeLocalVariable(Type type, int index) {
+			// Loads the local, and puts it into the buffer with the matching primitive-typed method.
+			switch (type.getSort()) {
+			case Type.BOOLEAN:
+			case Type.CHAR:
+			case Type.BYTE:
+			case Type.SHORT:
+			case Type.INT:
+				visitVarInsn(ILOAD, index);
+				visitMethodInsn(INVOKEVIRTUAL, CAPTURE_BUFFER, "putInt", "(II)L" + CAPTURE_BUFFER + ";");
+				break;
+			case Type.FLOAT:
+				visitVarInsn(FLOAD, index);
+				visitMethodInsn(INVOKEVIRTUAL, CAPTURE_BUFFER, "putFloat", "(IF)L" + CAPTURE_BUFFER + ";");
+				break;
+			case Type.LONG:
+				visitVarInsn(LLOAD, index);
+				visitMethodInsn(INVOKEVIRTUAL, CAPTURE_BUFFER, "putLong", "(IJ)L" + CAPTURE_BUFFER + ";");
+				break;
+			case Type.DOUBLE:
+				visitVarInsn(DLOAD, index);
+				visitMethodInsn(INVOKEVIRTUAL, CAPTURE_BUFFER, "putDouble", "(ID)L" + CAPTURE_BUFFER + ";");
+				break;
+			case Type.ARRAY:
+			case Type.OBJECT:
+				visitVarInsn(ALOAD, index);
+				visitMethodInsn(INVOKEVIRTUAL, CAPTURE_BUFFER, "putObject", "(ILjava/lang/Object;)L" + CAPTURE_BUFFER + ";");
+				break;
+			}
+		}
+
+		private void pushInt(int value) {
+			if (value >= -1 && value <= 5) {
+				visitInsn(ICONST_0 + value);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				visitIntInsn(BIPUSH, value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				visitIntInsn(SIPUSH, value);
+			} else {
+				visitLdcInsn(Integer.valueOf(value));
+			}
 		}
-		return mv;
 	}
-}
\ No newline at end of file
+}
@@ -1,8 +1,11 @@
 package nu.borrel.tools.debugger.agent.asm;
 
+import java.util.BitSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
+import nu.borrel.tools.debugger.agent.Breakpoint;
 import nu.borrel.tools.debugger.agent.asm.asm4.Label;
 
 public class BreakpointDescriptor {
@@ -12,14 +15,19 @@ public class BreakpointDescriptor {
 		private final Label start;
 		private final Label end;
 		private final int index;
+		// Position of the start/end labels in the method, -1 if the variable is live throughout (arguments).
+		private final int startOrdinal;
+		private final int endOrdinal;
 		private LocalVariable next;
 		
-		public LocalVariable(String name, String desc, Label start, Label end, int index, LocalVariable next) {
+		public LocalVariable(String name, String desc, Label start, Label end, int index, int startOrdinal, int endOrdinal, LocalVariable next) {
 			this.name = name;
 			this.desc = desc;
 			this.start = start;
 			this.end = end;
 			this.index = index;
+			this.startOrdinal = startOrdinal;
+			this.endOrdinal = endOrdinal;
 			this.next = next;
 		}
 
@@ -43,6 +51,10 @@ public class BreakpointDescriptor {
 			return index;
 		}
 
+		public boolean isLiveAt(int labelOrdinal) {
+			return (startOrdinal < 0 || startOrdinal <= labelOrdinal) && (endOrdinal < 0 || endOrdinal > labelOrdinal);
+		}
+
 		public LocalVariable getNext() {
 			return next;
 		}
@@ -57,17 +69,48 @@ public class BreakpointDescriptor {
 		}
 	}
 	
+	public static class Field {
+		private final String name;
+		private final String desc;
+		private final boolean isStatic;
+
+		public Field(String name, String desc, boolean isStatic) {
+			this.name = name;
+			this.desc = desc;
+			this.isStatic = isStatic;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDesc() {
+			return desc;
+		}
+
+		public boolean isStatic() {
+			return isStatic;
+		}
+	}
+	
 	private final String className;
 	private final String methodName;
+	private final String methodDesc;
 	private final int line;
+	private final Breakpoint breakpoint;
+	private final Map<String, Field> fields;
 	
 	private LocalVariable lvHead;
 	private Label label;
+	private int labelOrdinal = -1;
 		
-	public BreakpointDescriptor(String className, String methodName, Integer line) {
+	public BreakpointDescriptor(String className, String methodName, String methodDesc, Breakpoint breakpoint, Map<String, Field> fields) {
 		this.className = className;
 		this.methodName = methodName;
-		this.line = line;
+		this.methodDesc = methodDesc;
+		this.line = breakpoint.getLine();
+		this.breakpoint = breakpoint;
+		this.fields = fields;
 	}
 
 	public String getClassName() {
@@ -78,24 +121,40 @@ public class BreakpointDescriptor {
 		return methodName;
 	}
 
+	public String getMethodDesc() {
+		return methodDesc;
+	}
+
 	public int getLine() {
 		return line;
 	}
 
-	public void setLabel(Label label) {
+	public Breakpoint getBreakpoint() {
+		return breakpoint;
+	}
+
+	/**
+	 * The fields declared by the class, by name.
+	 */
+	public Map<String, Field> getFields() {
+		return fields;
+	}
+
+	public void setLabel(Label label, int labelOrdinal) {
 		this.label = label;
+		this.labelOrdinal = labelOrdinal;
 	}
 	
 	public Label getLabel() {
 		return label;
 	}
-	
+
 	public boolean isValid() {
 		return label != null;
 	}
 
-	public void addLocalVariable(String name, String desc, Label start,	Label end, int index) {
-		lvHead = new LocalVariable(name, desc, start, end, index, lvHead);
+	public void addLocalVariable(String name, String desc, Label start,	Label end, int index, int startOrdinal, int endOrdinal) {
+		lvHead = new LocalVariable(name, desc, start, end, index, startOrdinal, endOrdinal, lvHead);
 	}
 	
 	public Iterable<LocalVariable> getLocalVariables() {
@@ -105,11 +164,14 @@ public class BreakpointDescriptor {
 				return new Iterator<LocalVariable>() {
 					private LocalVariable lv = lvHead;
 					private LocalVariable next = null;
+					// Entries from the LocalVariableTable are added last, and so shadow the synthetic 'argN' ones.
+					private final BitSet seen = new BitSet();
 
 					@Override
 					public boolean hasNext() {
 						while (next == null && lv != null) {
-							if ((lv.start == null || lv.start.getLine() < label.getLine()) && (lv.end == null || lv.end.getLine() >= label.getLine())) {
+							if (lv.isLiveAt(labelOrdinal) && !seen.get(lv.index)) {
+								seen.set(lv.index);
 								next = lv.clone();
 								next.next = null;
 							}
@@ -0,0 +1,157 @@
+package nu.borrel.tools.debugger.agent.asm;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import nu.borrel.tools.debugger.agent.asm.asm4.ClassReader;
+import nu.borrel.tools.debugger.agent.asm.asm4.util.TraceClassVisitor;
+
+/**
+ * Opt-in diagnostics: writes transformed classes, and a textual listing of them, into a dump directory.
+ *
+ * Dumps are written by a background thread, and dropped when it falls behind. The directory keeps at most
+ * {@link #getMaxFiles()} dump files, older ones are deleted. Other files in the directory are left alone. When
+ * disabled the transformer pays for a single volatile read.
+ */
+public class ClassDumper {
+	private static final int QUEUE_SIZE = 64;
+	// The names of the files written by write()
+	private static final Pattern DUMP_NAME = Pattern.compile("[\\p{javaJavaIdentifierPart}.]+-\\d+\\.(class|txt)");
+	private static final FileFilter DUMPS = new FileFilter() {
+		@Override
+		public boolean accept(File file) {
+			return file.isFile() && DUMP_NAME.matcher(file.getName()).matches();
+		}
+	};
+
+	private volatile boolean enabled;
+	private volatile File directory = new File(System.getProperty("java.io.tmpdir"), "attachable-debugger");
+	private volatile int maxFiles = 200;
+	private final AtomicLong dropped = new AtomicLong();
+	private ThreadPoolExecutor writer;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public synchronized void setEnabled(boolean enabled) {
+		if (enabled && writer == null) {
+			writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "debugger-agent-class-dumper");
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, new ThreadPoolExecutor.DiscardPolicy() {
+				@Override
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+					dropped.incrementAndGet();
+				}
+			});
+		} else if (!enabled && writer != null) {
+			writer.shutdown();
+			writer = null;
+		}
+		this.enabled = enabled;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	public int getMaxFiles() {
+		return maxFiles;
+	}
+
+	public void setMaxFiles(int maxFiles) {
+		this.maxFiles = maxFiles;
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Queues the transformed bytes of the class for writing, if enabled.
+	 */
+	public void dump(final String className, final byte[] bytes) {
+		if (!enabled) {
+			return;
+		}
+		ThreadPoolExecutor writer;
+		synchronized (this) {
+			writer = this.writer;
+		}
+		if (writer == null) {
+			return;
+		}
+		final long timestamp = System.currentTimeMillis();
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(className, timestamp, bytes);
+				} catch (IOException e) {
+					System.err.println("Cannot dump " + className + ": " + e);
+				}
+			}
+		});
+	}
+
+	private void write(String className, long timestamp, byte[] bytes) throws IOException {
+		File directory = this.directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		String baseName = className.replace('/', '.') + "-" + timestamp;
+		FileOutputStream fos = new FileOutputStream(new File(directory, baseName + ".class"));
+		try {
+			fos.write(bytes);
+		} finally {
+			fos.close();
+		}
+		PrintWriter pw = new PrintWriter(new File(directory, baseName + ".txt"));
+		try {
+			new ClassReader(bytes).accept(new TraceClassVisitor(pw), 0);
+		} finally {
+			pw.close();
+		}
+		rotate(directory, maxFiles);
+	}
+
+	/**
+	 * Deletes the oldest dump files beyond the given number.
+	 */
+	static void rotate(File directory, int maxFiles) {
+		File[] files = directory.listFiles(DUMPS);
+		if (files == null || files.length <= maxFiles) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long difference = a.lastModified() - b.lastModified();
+				return difference < 0 ? -1 : difference > 0 ? 1 : a.getName().compareTo(b.getName());
+			}
+		});
+		for (int i = 0; i < files.length - maxFiles; i++) {
+			files[i].delete();
+		}
+	}
+}
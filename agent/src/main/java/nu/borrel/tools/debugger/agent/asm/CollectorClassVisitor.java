@@ -1,10 +1,20 @@
 package nu.borrel.tools.debugger.agent.asm;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import nu.borrel.tools.debugger.agent.Breakpoint;
+import nu.borrel.tools.debugger.agent.asm.BreakpointDescriptor.Field;
+import nu.borrel.tools.debugger.agent.asm.asm4.AnnotationVisitor;
 import nu.borrel.tools.debugger.agent.asm.asm4.ClassVisitor;
+import nu.borrel.tools.debugger.agent.asm.asm4.FieldVisitor;
 import nu.borrel.tools.debugger.agent.asm.asm4.Label;
 import nu.borrel.tools.debugger.agent.asm.asm4.MethodVisitor;
 import nu.borrel.tools.debugger.agent.asm.asm4.Opcodes;
@@ -12,52 +22,197 @@ import nu.borrel.tools.debugger.agent.asm.asm4.Type;
 
 public class CollectorClassVisitor extends ClassVisitor implements Opcodes {
 	private final String className;
-	// XXX: unfold into a chain!
-	private final Map<String, Integer> breakpoints;
-	private final List<BreakpointDescriptor> descriptors = new LinkedList<BreakpointDescriptor>();
+	// By method name, and by method name + descriptor
+	private final Map<String, MethodBreakpoints> breakpoints;
+	private final List<Breakpoint> patternBreakpoints;
+	// Descriptors of the class annotations, these come before the fields and methods
+	private final Set<String> annotations = new HashSet<String>();
+	// By method name + descriptor
+	private final Map<String, List<BreakpointDescriptor>> descriptors = new HashMap<String, List<BreakpointDescriptor>>();
+	private final Map<String, Field> fields = new HashMap<String, Field>();
 
-	CollectorClassVisitor(Map<String, Integer> breakpoints, String className) {
+	CollectorClassVisitor(Map<String, MethodBreakpoints> breakpoints, List<Breakpoint> patternBreakpoints, String className) {
 		super(ASM4);
 		this.className = className;
 		this.breakpoints = breakpoints;
+		this.patternBreakpoints = patternBreakpoints;
 	}
 
 	@Override
-	public MethodVisitor visitMethod(final int access, final String name, String desc, String signature, String[] exceptions) {
-		final Integer expectedLine = breakpoints.get(name); 
-		if (expectedLine != null) {
-			final BreakpointDescriptor descriptor = new BreakpointDescriptor(className, name, expectedLine.intValue());
-			int i = 0;
-			for (Type t : Type.getArgumentTypes(desc)) {
-				descriptor.addLocalVariable("arg" + i, t.getDescriptor(), null, null, i + ((access & ACC_STATIC) == 0 ? 1 : 0));
-				i++;
-			}
-			
-			return new MethodVisitor(ASM4) {
-				@Override
-				public void visitLineNumber(int line, Label start) {
-					if (line >= expectedLine.intValue() && !descriptor.isValid()) {
-						descriptor.setLabel(start);
+	public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+		annotations.add(desc);
+		return null;
+	}
+
+	@Override
+	public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+		fields.put(name, new Field(name, desc, (access & ACC_STATIC) != 0));
+		return null;
+	}
+
+	@Override
+	public MethodVisitor visitMethod(final int access, final String name, final String desc, String signature, String[] exceptions) {
+		final MethodBreakpoints exact = breakpoints.get(name + desc);
+		final MethodBreakpoints plain = breakpoints.get(name);
+		final List<Breakpoint> entry = findPatternBreakpoints(name);
+		if (exact == null && plain == null && entry.isEmpty()) {
+			return null;
+		}
+
+		// One descriptor per breakpoint, these all see the same local variables.
+		final Map<Breakpoint, BreakpointDescriptor> methodDescriptors = new IdentityHashMap<Breakpoint, BreakpointDescriptor>();
+		addDescriptors(methodDescriptors, exact, name, desc);
+		addDescriptors(methodDescriptors, plain, name, desc);
+		for (Breakpoint breakpoint : entry) {
+			methodDescriptors.put(breakpoint, new BreakpointDescriptor(className, name, desc, breakpoint, fields));
+		}
+		// 'this' and the arguments, for classes compiled without a LocalVariableTable. In constructors 'this' can't be
+		// passed around before the super constructor is called.
+		if ((access & ACC_STATIC) == 0 && !"<init>".equals(name)) {
+			for (BreakpointDescriptor descriptor : methodDescriptors.values()) {
+				descriptor.addLocalVariable("this", "L" + className + ";", null, null, 0, -1, -1);
+			}
+		}
+		int i = 0;
+		int index = (access & ACC_STATIC) == 0 ? 1 : 0;
+		for (Type t : Type.getArgumentTypes(desc)) {
+			for (BreakpointDescriptor descriptor : methodDescriptors.values()) {
+				descriptor.addLocalVariable("arg" + i, t.getDescriptor(), null, null, index, -1, -1);
+			}
+			index += t.getSize();
+			i++;
+		}
+
+		return new MethodVisitor(ASM4) {
+			private final Map<Label, Integer> labelOrdinals = new IdentityHashMap<Label, Integer>();
+			// The line number entries in the order of the code
+			private int[] lines = new int[16];
+			private Label[] lineLabels = new Label[16];
+			private int lineCount;
+
+			@Override
+			public void visitLabel(Label label) {
+				labelOrdinals.put(label, labelOrdinals.size());
+			}
+
+			@Override
+			public void visitLineNumber(int line, Label start) {
+				if (lineCount == lines.length) {
+					lines = Arrays.copyOf(lines, lineCount * 2);
+					lineLabels = Arrays.copyOf(lineLabels, lineCount * 2);
+				}
+				lines[lineCount] = line;
+				lineLabels[lineCount] = start;
+				lineCount++;
+			}
+
+			@Override
+			public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
+				for (BreakpointDescriptor descriptor : methodDescriptors.values()) {
+					descriptor.addLocalVariable(name, desc, start, end, index, labelOrdinals.get(start), labelOrdinals.get(end));
+				}
+			}
+
+			@Override
+			public void visitEnd() {
+				if (lineCount == 0) {
+					return;
+				}
+				// The distinct lines in ascending order, each with the label where it first appears in the code.
+				long[] sorted = new long[lineCount];
+				for (int i = 0; i < lineCount; i++) {
+					sorted[i] = (long) lines[i] << 32 | i;
+				}
+				Arrays.sort(sorted);
+				int[] distinctLines = new int[lineCount];
+				Label[] distinctLabels = new Label[lineCount];
+				int distinctCount = 0;
+				for (long key : sorted) {
+					int line = (int) (key >>> 32);
+					if (distinctCount == 0 || distinctLines[distinctCount - 1] != line) {
+						distinctLines[distinctCount] = line;
+						distinctLabels[distinctCount] = lineLabels[(int) key];
+						distinctCount++;
 					}
 				}
 
-				@Override
-				public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
-					descriptor.addLocalVariable(name, desc, start, end, index);
+				place(exact, false, distinctLines, distinctLabels, distinctCount);
+				place(plain, true, distinctLines, distinctLabels, distinctCount);
+				for (Breakpoint breakpoint : entry) {
+					// Pattern breakpoints go to the first line of the code.
+					setLabel(methodDescriptors.get(breakpoint), lineLabels[0]);
 				}
+			}
 
-				@Override
-				public void visitEnd() {
-					if (descriptor.isValid()) {
-						descriptors.add(descriptor);
+			/**
+			 * Places the breakpoints on the line they name, or if that line has no code on the next line that has.
+			 * Both are sorted, so this is a single walk over the two.
+			 * 
+			 * @param overloaded whether only breakpoints within the lines of this method apply, as the breakpoints
+			 * name the method without descriptor
+			 */
+			private void place(MethodBreakpoints methodBreakpoints, boolean overloaded, int[] distinctLines, Label[] distinctLabels, int distinctCount) {
+				if (methodBreakpoints == null) {
+					return;
+				}
+				int p = 0;
+				for (int i = 0; i < methodBreakpoints.size(); i++) {
+					int line = methodBreakpoints.getLine(i);
+					if (overloaded && line > 0 && (line < distinctLines[0] || line > distinctLines[distinctCount - 1])) {
+						continue;
 					}
+					while (p < distinctCount && distinctLines[p] < line) {
+						p++;
+					}
+					if (p == distinctCount) {
+						break;
+					}
+					// Line 0 and below stand for the start of the method.
+					setLabel(methodDescriptors.get(methodBreakpoints.getBreakpoint(i)), line > 0 ? distinctLabels[p] : lineLabels[0]);
+				}
+			}
+
+			private void setLabel(BreakpointDescriptor descriptor, Label label) {
+				descriptor.setLabel(label, labelOrdinals.get(label));
+				List<BreakpointDescriptor> list = descriptors.get(name + desc);
+				if (list == null) {
+					list = new ArrayList<BreakpointDescriptor>();
+					descriptors.put(name + desc, list);
 				}
-			};
+				list.add(descriptor);
+			}
+		};
+	}
+
+	private void addDescriptors(Map<Breakpoint, BreakpointDescriptor> methodDescriptors, MethodBreakpoints methodBreakpoints, String name, String desc) {
+		if (methodBreakpoints != null) {
+			for (int i = 0; i < methodBreakpoints.size(); i++) {
+				Breakpoint breakpoint = methodBreakpoints.getBreakpoint(i);
+				methodDescriptors.put(breakpoint, new BreakpointDescriptor(className, name, desc, breakpoint, fields));
+			}
 		}
-		return null;
 	}
-	
-	public Iterable<BreakpointDescriptor> getBreakpointDescriptors() {
+
+	/**
+	 * The pattern breakpoints that select the method.
+	 */
+	private List<Breakpoint> findPatternBreakpoints(String name) {
+		List<Breakpoint> result = null;
+		for (Breakpoint patternBreakpoint : patternBreakpoints) {
+			if ((patternBreakpoint.getAnnotation() == null || annotations.contains(patternBreakpoint.getAnnotation())) && patternBreakpoint.matchesMethod(name)) {
+				if (result == null) {
+					result = new ArrayList<Breakpoint>();
+				}
+				result.add(patternBreakpoint);
+			}
+		}
+		return result != null ? result : Collections.<Breakpoint>emptyList();
+	}
+
+	/**
+	 * The descriptors of all breakpoints that could be placed, by method name + method descriptor.
+	 */
+	public Map<String, List<BreakpointDescriptor>> getBreakpointDescriptors() {
 		return descriptors;
 	}
 }
@@ -0,0 +1,310 @@
+package nu.borrel.tools.debugger.agent.asm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A breakpoint condition, parsed from an expression such as <code>customerId == 42 &amp;&amp; name != null</code>.
+ *
+ * Conditions are made of comparisons (<code>== != &lt; &lt;= &gt; &gt;=</code>) between local variables, fields of the
+ * instrumented class (<code>this.x</code>, or just <code>x</code> when there is no local of that name) and
+ * literals; <code>x == "text"</code> and <code>x.equals("text")</code> compare strings by value. Boolean locals and
+ * fields can be used as conditions directly, and conditions combine with <code>&amp;&amp; || !</code> and
+ * parentheses. Only the syntax is checked here, types are resolved by the {@link ConditionCompiler} when the
+ * condition gets compiled into the instrumented method.
+ */
+public abstract class Condition {
+	public static class And extends Condition {
+		final Condition left;
+		final Condition right;
+
+		And(Condition left, Condition right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public String toString() {
+			return "(" + left + " && " + right + ")";
+		}
+	}
+
+	public static class Or extends Condition {
+		final Condition left;
+		final Condition right;
+
+		Or(Condition left, Condition right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public String toString() {
+			return "(" + left + " || " + right + ")";
+		}
+	}
+
+	public static class Not extends Condition {
+		final Condition condition;
+
+		Not(Condition condition) {
+			this.condition = condition;
+		}
+
+		@Override
+		public String toString() {
+			return "!" + condition;
+		}
+	}
+
+	public static class Comparison extends Condition {
+		final String operator;
+		final Operand left;
+		final Operand right;
+
+		Comparison(String operator, Operand left, Operand right) {
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public String toString() {
+			return left + " " + operator + " " + right;
+		}
+	}
+
+	/**
+	 * A single boolean operand used as condition.
+	 */
+	public static class Test extends Condition {
+		final Operand operand;
+
+		Test(Operand operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		public String toString() {
+			return operand.toString();
+		}
+	}
+
+	public static class Operand {
+		// Either a reference to a local/field, or a literal value.
+		final String name;
+		final boolean field;
+		final Object literal;
+
+		private Operand(String name, boolean field, Object literal) {
+			this.name = name;
+			this.field = field;
+			this.literal = literal;
+		}
+
+		static Operand reference(String name, boolean field) {
+			return new Operand(name, field, null);
+		}
+
+		static Operand literal(Object literal) {
+			return new Operand(null, false, literal);
+		}
+
+		boolean isLiteral() {
+			return name == null;
+		}
+
+		@Override
+		public String toString() {
+			if (isLiteral()) {
+				return literal instanceof String ? "\"" + literal + "\"" : String.valueOf(literal);
+			}
+			return field ? "this." + name : name;
+		}
+	}
+
+	public static Condition parse(String expression) {
+		Parser parser = new Parser(tokenize(expression), expression);
+		Condition condition = parser.parseOr();
+		if (parser.position != parser.tokens.size()) {
+			throw parser.error("Unexpected '" + parser.peek() + "'");
+		}
+		return condition;
+	}
+
+	private static List<String> tokenize(String expression) {
+		List<String> tokens = new ArrayList<String>();
+		int i = 0;
+		while (i < expression.length()) {
+			char c = expression.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (Character.isJavaIdentifierStart(c)) {
+				int start = i;
+				while (i < expression.length() && Character.isJavaIdentifierPart(expression.charAt(i))) {
+					i++;
+				}
+				tokens.add(expression.substring(start, i));
+			} else if (Character.isDigit(c) || (c == '-' && i + 1 < expression.length() && Character.isDigit(expression.charAt(i + 1)))) {
+				int start = i++;
+				while (i < expression.length() && (Character.isLetterOrDigit(expression.charAt(i)) || expression.charAt(i) == '.' || isExponentSign(expression, i))) {
+					i++;
+				}
+				tokens.add(expression.substring(start, i));
+			} else if (c == '"') {
+				StringBuilder literal = new StringBuilder("\"");
+				i++;
+				while (i < expression.length() && expression.charAt(i) != '"') {
+					if (expression.charAt(i) == '\\' && i + 1 < expression.length()) {
+						i++;
+					}
+					literal.append(expression.charAt(i++));
+				}
+				if (i == expression.length()) {
+					throw new IllegalArgumentException("Unterminated string in '" + expression + "'");
+				}
+				i++;
+				tokens.add(literal.toString());
+			} else {
+				String two = i + 1 < expression.length() ? expression.substring(i, i + 2) : "";
+				if ("==".equals(two) || "!=".equals(two) || "<=".equals(two) || ">=".equals(two) || "&&".equals(two) || "||".equals(two)) {
+					tokens.add(two);
+					i += 2;
+				} else if ("<>!().".indexOf(c) >= 0) {
+					tokens.add(String.valueOf(c));
+					i++;
+				} else {
+					throw new IllegalArgumentException("Unexpected '" + c + "' in '" + expression + "'");
+				}
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Whether the character is the sign of an exponent, as in <code>1e-3</code>, rather than the start of a number.
+	 */
+	private static boolean isExponentSign(String expression, int i) {
+		char c = expression.charAt(i);
+		char previous = expression.charAt(i - 1);
+		return (c == '-' || c == '+') && (previous == 'e' || previous == 'E') && i + 1 < expression.length() && Character.isDigit(expression.charAt(i + 1));
+	}
+
+	private static class Parser {
+		private final List<String> tokens;
+		private final String expression;
+		private int position;
+
+		Parser(List<String> tokens, String expression) {
+			this.tokens = tokens;
+			this.expression = expression;
+		}
+
+		String peek() {
+			return position < tokens.size() ? tokens.get(position) : null;
+		}
+
+		boolean accept(String token) {
+			if (token.equals(peek())) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		void expect(String token) {
+			if (!accept(token)) {
+				throw error("Expected '" + token + "'");
+			}
+		}
+
+		IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at token " + position + " of '" + expression + "'");
+		}
+
+		Condition parseOr() {
+			Condition condition = parseAnd();
+			while (accept("||")) {
+				condition = new Or(condition, parseAnd());
+			}
+			return condition;
+		}
+
+		Condition parseAnd() {
+			Condition condition = parseUnary();
+			while (accept("&&")) {
+				condition = new And(condition, parseUnary());
+			}
+			return condition;
+		}
+
+		Condition parseUnary() {
+			if (accept("!")) {
+				return new Not(parseUnary());
+			}
+			if (accept("(")) {
+				Condition condition = parseOr();
+				expect(")");
+				return condition;
+			}
+			Operand left = parseOperand();
+			if (accept(".")) {
+				if (left.isLiteral() || !accept("equals")) {
+					throw error("Only .equals(...) can be called");
+				}
+				expect("(");
+				Operand right = parseOperand();
+				expect(")");
+				return new Comparison("==", left, right);
+			}
+			String operator = peek();
+			if ("==".equals(operator) || "!=".equals(operator) || "<".equals(operator) || "<=".equals(operator) || ">".equals(operator) || ">=".equals(operator)) {
+				position++;
+				return new Comparison(operator, left, parseOperand());
+			}
+			return new Test(left);
+		}
+
+		Operand parseOperand() {
+			String token = peek();
+			if (token == null) {
+				throw error("Unexpected end");
+			}
+			position++;
+			if (token.startsWith("\"")) {
+				return Operand.literal(token.substring(1));
+			} else if (Character.isDigit(token.charAt(0)) || token.charAt(0) == '-') {
+				return Operand.literal(parseNumber(token));
+			} else if ("true".equals(token) || "false".equals(token)) {
+				return Operand.literal(Boolean.valueOf(token));
+			} else if ("null".equals(token)) {
+				return Operand.literal(null);
+			} else if ("this".equals(token)) {
+				expect(".");
+				String name = peek();
+				if (name == null || !Character.isJavaIdentifierStart(name.charAt(0))) {
+					throw error("Expected field name");
+				}
+				position++;
+				return Operand.reference(name, true);
+			} else if (Character.isJavaIdentifierStart(token.charAt(0))) {
+				return Operand.reference(token, false);
+			}
+			throw error("Unexpected '" + token + "'");
+		}
+
+		Object parseNumber(String token) {
+			try {
+				if (token.endsWith("L") || token.endsWith("l")) {
+					return Long.valueOf(token.substring(0, token.length() - 1));
+				} else if (token.indexOf('.') >= 0 || token.indexOf('e') >= 0 || token.indexOf('E') >= 0) {
+					return Double.valueOf(token);
+				}
+				long value = Long.parseLong(token);
+				return value == (int) value ? (Object) Integer.valueOf((int) value) : (Object) Long.valueOf(value);
+			} catch (NumberFormatException e) {
+				throw error("Invalid number '" + token + "'");
+			}
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package nu.borrel.tools.debugger.agent.asm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nu.borrel.tools.debugger.agent.asm.BreakpointDescriptor.Field;
+import nu.borrel.tools.debugger.agent.asm.BreakpointDescriptor.LocalVariable;
+import nu.borrel.tools.debugger.agent.asm.Condition.And;
+import nu.borrel.tools.debugger.agent.asm.Condition.Comparison;
+import nu.borrel.tools.debugger.agent.asm.Condition.Not;
+import nu.borrel.tools.debugger.agent.asm.Condition.Operand;
+import nu.borrel.tools.debugger.agent.asm.Condition.Or;
+import nu.borrel.tools.debugger.agent.asm.Condition.Test;
+import nu.borrel.tools.debugger.agent.asm.asm4.Label;
+import nu.borrel.tools.debugger.agent.asm.asm4.MethodVisitor;
+import nu.borrel.tools.debugger.agent.asm.asm4.Opcodes;
+import nu.borrel.tools.debugger.agent.asm.asm4.Type;
+
+/**
+ * Compiles a {@link Condition} into plain jumps over the breakpoint code.
+ *
+ * The generated code only loads locals/fields and compares them, so a hit that does not match costs a few
+ * instructions and never allocates. All operands are consumed before every jump, the stack is the same at every
+ * label as at the injection point.
+ */
+class ConditionCompiler implements Opcodes {
+	private static final Type STRING_TYPE = Type.getObjectType("java/lang/String");
+	private static final Type NULL_TYPE = Type.getObjectType("null");
+
+	private final Condition condition;
+	private final String className;
+	private final boolean isStatic;
+	private final boolean thisInitialized;
+	private final Map<String, LocalVariable> locals = new HashMap<String, LocalVariable>();
+	private final Map<String, Field> fields;
+
+	/**
+	 * Resolves all names of the condition against the variables live at the breakpoint.
+	 *
+	 * @param thisInitialized <code>false</code> in a constructor before the super constructor call
+	 * @throws IllegalArgumentException if a name is unknown, or the types do not fit the operators.
+	 */
+	ConditionCompiler(Condition condition, BreakpointDescriptor descriptor, boolean isStatic, boolean thisInitialized) {
+		this.condition = condition;
+		this.className = descriptor.getClassName();
+		this.isStatic = isStatic;
+		this.thisInitialized = thisInitialized;
+		this.fields = descriptor.getFields();
+		for (LocalVariable lv : descriptor.getLocalVariables()) {
+			if (!isStatic && !thisInitialized && lv.getIndex() == 0) {
+				continue;
+			}
+			locals.put(lv.getName(), lv);
+		}
+		check(condition);
+	}
+
+	/**
+	 * Emits code that jumps to <code>skip</code> when the condition does not hold.
+	 */
+	void compile(MethodVisitor mv, Label skip) {
+		branch(mv, condition, skip, false);
+	}
+
+	private void check(Condition c) {
+		if (c instanceof And) {
+			check(((And) c).left);
+			check(((And) c).right);
+		} else if (c instanceof Or) {
+			check(((Or) c).left);
+			check(((Or) c).right);
+		} else if (c instanceof Not) {
+			check(((Not) c).condition);
+		} else if (c instanceof Test) {
+			if (typeOf(((Test) c).operand).getSort() != Type.BOOLEAN) {
+				throw new IllegalArgumentException("Not a boolean: " + c);
+			}
+		} else {
+			Comparison comparison = (Comparison) c;
+			comparisonKind(comparison, typeOf(comparison.left), typeOf(comparison.right));
+		}
+	}
+
+	private void branch(MethodVisitor mv, Condition c, Label target, boolean jumpIfTrue) {
+		if (c instanceof And) {
+			And and = (And) c;
+			if (jumpIfTrue) {
+				Label skip = new Label();
+				branch(mv, and.left, skip, false);
+				branch(mv, and.right, target, true);
+				mv.visitLabel(skip);
+			} else {
+				branch(mv, and.left, target, false);
+				branch(mv, and.right, target, false);
+			}
+		} else if (c instanceof Or) {
+			Or or = (Or) c;
+			if (jumpIfTrue) {
+				branch(mv, or.left, target, true);
+				branch(mv, or.right, target, true);
+			} else {
+				Label skip = new Label();
+				branch(mv, or.left, skip, true);
+				branch(mv, or.right, target, false);
+				mv.visitLabel(skip);
+			}
+		} else if (c instanceof Not) {
+			branch(mv, ((Not) c).condition, target, !jumpIfTrue);
+		} else if (c instanceof Test) {
+			load(mv, ((Test) c).operand, Type.BOOLEAN_TYPE);
+			mv.visitJumpInsn(jumpIfTrue ? IFNE : IFEQ, target);
+		} else {
+			compare(mv, (Comparison) c, target, jumpIfTrue);
+		}
+	}
+
+	private void compare(MethodVisitor mv, Comparison c, Label target, boolean jumpIfTrue) {
+		Type leftType = typeOf(c.left);
+		Type rightType = typeOf(c.right);
+		// Jumping when the comparison does not hold is jumping on the negated operator.
+		boolean equal = "==".equals(c.operator) ^ !jumpIfTrue;
+		switch (comparisonKind(c, leftType, rightType)) {
+		case NULL_CHECK:
+			load(mv, leftType == NULL_TYPE ? c.right : c.left, null);
+			mv.visitJumpInsn(equal ? IFNULL : IFNONNULL, target);
+			break;
+		case STRING_EQUALS:
+			// "literal".equals(value), which also deals with a null value
+			Operand literal = c.right.isLiteral() ? c.right : c.left;
+			mv.visitLdcInsn(literal.literal);
+			load(mv, literal == c.right ? c.left : c.right, null);
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z");
+			mv.visitJumpInsn(equal ? IFNE : IFEQ, target);
+			break;
+		case IDENTITY:
+			load(mv, c.left, null);
+			load(mv, c.right, null);
+			mv.visitJumpInsn(equal ? IF_ACMPEQ : IF_ACMPNE, target);
+			break;
+		case NUMERIC:
+			Type type = promote(leftType, rightType);
+			load(mv, c.left, type);
+			load(mv, c.right, type);
+			String operator = jumpIfTrue ? c.operator : negate(c.operator);
+			if (type == Type.INT_TYPE) {
+				mv.visitJumpInsn(intCompare(operator), target);
+			} else {
+				if (type == Type.LONG_TYPE) {
+					mv.visitInsn(LCMP);
+				} else {
+					// NaN must make the comparison fail, so pick the variant that yields a failing result.
+					mv.visitInsn(c.operator.startsWith("<") ? DCMPG : DCMPL);
+				}
+				mv.visitJumpInsn(intCompare(operator) - (IF_ICMPEQ - IFEQ), target);
+			}
+			break;
+		}
+	}
+
+	private enum Kind {
+		NULL_CHECK, STRING_EQUALS, IDENTITY, NUMERIC,
+	}
+
+	private static Kind comparisonKind(Comparison c, Type left, Type right) {
+		boolean equality = "==".equals(c.operator) || "!=".equals(c.operator);
+		if (equality && (left == NULL_TYPE || right == NULL_TYPE) && isReference(left) && isReference(right) && left != right) {
+			return Kind.NULL_CHECK;
+		}
+		if (equality && ((c.left.isLiteral() && left == STRING_TYPE && isReference(right)) || (c.right.isLiteral() && right == STRING_TYPE && isReference(left)))) {
+			return Kind.STRING_EQUALS;
+		}
+		if (equality && isReference(left) && isReference(right) && left != NULL_TYPE && right != NULL_TYPE) {
+			return Kind.IDENTITY;
+		}
+		if (isNumeric(left) && isNumeric(right)) {
+			return Kind.NUMERIC;
+		}
+		if (equality && left.getSort() == Type.BOOLEAN && right.getSort() == Type.BOOLEAN) {
+			return Kind.NUMERIC;
+		}
+		throw new IllegalArgumentException("Cannot compare " + left.getClassName() + " and " + right.getClassName() + " in " + c);
+	}
+
+	private Type typeOf(Operand operand) {
+		if (operand.isLiteral()) {
+			Object literal = operand.literal;
+			if (literal == null) {
+				return NULL_TYPE;
+			} else if (literal instanceof String) {
+				return STRING_TYPE;
+			} else if (literal instanceof Boolean) {
+				return Type.BOOLEAN_TYPE;
+			} else if (literal instanceof Integer) {
+				return Type.INT_TYPE;
+			} else if (literal instanceof Long) {
+				return Type.LONG_TYPE;
+			}
+			return Type.DOUBLE_TYPE;
+		}
+		if (!operand.field && locals.containsKey(operand.name)) {
+			return Type.getType(locals.get(operand.name).getDesc());
+		}
+		Field field = fields.get(operand.name);
+		if (field == null) {
+			throw new IllegalArgumentException("Unknown variable '" + operand + "'");
+		}
+		if (!field.isStatic() && isStatic) {
+			throw new IllegalArgumentException("No 'this' in static method for '" + operand + "'");
+		}
+		if (!field.isStatic() && !thisInitialized) {
+			throw new IllegalArgumentException("No 'this' before the super constructor call for '" + operand + "'");
+		}
+		return Type.getType(field.getDesc());
+	}
+
+	/**
+	 * Loads the operand, converted to <code>as</code> for numeric operands.
+	 */
+	private void load(MethodVisitor mv, Operand operand, Type as) {
+		Type type = typeOf(operand);
+		if (operand.isLiteral()) {
+			Object literal = operand.literal;
+			if (literal == null) {
+				mv.visitInsn(ACONST_NULL);
+			} else if (literal instanceof Boolean) {
+				mv.visitInsn(((Boolean) literal).booleanValue() ? ICONST_1 : ICONST_0);
+			} else if (literal instanceof Number && as != null) {
+				Number number = (Number) literal;
+				if (as == Type.INT_TYPE) {
+					mv.visitLdcInsn(Integer.valueOf(number.intValue()));
+				} else if (as == Type.LONG_TYPE) {
+					mv.visitLdcInsn(Long.valueOf(number.longValue()));
+				} else {
+					mv.visitLdcInsn(Double.valueOf(number.doubleValue()));
+				}
+				return;
+			} else {
+				mv.visitLdcInsn(literal);
+			}
+		} else if (!operand.field && locals.containsKey(operand.name)) {
+			mv.visitVarInsn(type.getOpcode(ILOAD), locals.get(operand.name).getIndex());
+		} else {
+			Field field = fields.get(operand.name);
+			if (field.isStatic()) {
+				mv.visitFieldInsn(GETSTATIC, className, field.getName(), field.getDesc());
+			} else {
+				mv.visitVarInsn(ALOAD, 0);
+				mv.visitFieldInsn(GETFIELD, className, field.getName(), field.getDesc());
+			}
+		}
+		convert(mv, type, as);
+	}
+
+	private static void convert(MethodVisitor mv, Type from, Type to) {
+		if (to == null || !isNumeric(from) || to.getSort() == Type.BOOLEAN) {
+			return;
+		}
+		int fromSort = from.getSort() == Type.FLOAT || from.getSort() == Type.LONG || from.getSort() == Type.DOUBLE ? from.getSort() : Type.INT;
+		if (to == Type.LONG_TYPE && fromSort == Type.INT) {
+			mv.visitInsn(I2L);
+		} else if (to == Type.DOUBLE_TYPE) {
+			switch (fromSort) {
+			case Type.INT:
+				mv.visitInsn(I2D);
+				break;
+			case Type.LONG:
+				mv.visitInsn(L2D);
+				break;
+			case Type.FLOAT:
+				mv.visitInsn(F2D);
+				break;
+			}
+		}
+	}
+
+	private static Type promote(Type left, Type right) {
+		if (left.getSort() == Type.BOOLEAN) {
+			return Type.INT_TYPE;
+		}
+		int sort = Math.max(numericRank(left), numericRank(right));
+		return sort == 2 ? Type.DOUBLE_TYPE : sort == 1 ? Type.LONG_TYPE : Type.INT_TYPE;
+	}
+
+	private static int numericRank(Type type) {
+		switch (type.getSort()) {
+		case Type.FLOAT:
+		case Type.DOUBLE:
+			return 2;
+		case Type.LONG:
+			return 1;
+		default:
+			return 0;
+		}
+	}
+
+	private static boolean isNumeric(Type type) {
+		switch (type.getSort()) {
+		case Type.CHAR:
+		case Type.BYTE:
+		case Type.SHORT:
+		case Type.INT:
+		case Type.FLOAT:
+		case Type.LONG:
+		case Type.DOUBLE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static boolean isReference(Type type) {
+		return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+	}
+
+	private static String negate(String operator) {
+		if ("==".equals(operator)) {
+			return "!=";
+		} else if ("!=".equals(operator)) {
+			return "==";
+		} else if ("<".equals(operator)) {
+			return ">=";
+		} else if ("<=".equals(operator)) {
+			return ">";
+		} else if (">".equals(operator)) {
+			return "<=";
+		}
+		return "<";
+	}
+
+	private static int intCompare(String operator) {
+		if ("==".equals(operator)) {
+			return IF_ICMPEQ;
+		} else if ("!=".equals(operator)) {
+			return IF_ICMPNE;
+		} else if ("<".equals(operator)) {
+			return IF_ICMPLT;
+		} else if ("<=".equals(operator)) {
+			return IF_ICMPLE;
+		} else if (">".equals(operator)) {
+			return IF_ICMPGT;
+		}
+		return IF_ICMPGE;
+	}
+}
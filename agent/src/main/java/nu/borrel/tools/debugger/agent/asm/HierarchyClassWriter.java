@@ -0,0 +1,23 @@
+package nu.borrel.tools.debugger.agent.asm;
+
+import nu.borrel.tools.debugger.agent.asm.asm4.ClassReader;
+import nu.borrel.tools.debugger.agent.asm.asm4.ClassWriter;
+
+/**
+ * A {@link ClassWriter} that looks up common super classes in a {@link TypeHierarchy}, rather than loading them.
+ */
+class HierarchyClassWriter extends ClassWriter {
+	private final TypeHierarchy hierarchy;
+	private final ClassLoader loader;
+
+	HierarchyClassWriter(ClassReader cr, int flags, TypeHierarchy hierarchy, ClassLoader loader) {
+		super(cr, flags);
+		this.hierarchy = hierarchy;
+		this.loader = loader;
+	}
+
+	@Override
+	protected String getCommonSuperClass(String type1, String type2) {
+		return hierarchy.getCommonSuperClass(loader, type1, type2);
+	}
+}
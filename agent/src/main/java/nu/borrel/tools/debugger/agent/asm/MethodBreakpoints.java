@@ -0,0 +1,71 @@
+package nu.borrel.tools.debugger.agent.asm;
+
+import nu.borrel.tools.debugger.agent.Breakpoint;
+
+/**
+ * The breakpoints of one method, sorted by line.
+ *
+ * Instances are immutable, {@link #add(Breakpoint)} returns a copy, so that the transformer can read them without
+ * locking while breakpoints are added.
+ */
+class MethodBreakpoints {
+	static final MethodBreakpoints EMPTY = new MethodBreakpoints(new int[0], new Breakpoint[0]);
+
+	private final int[] lines;
+	private final Breakpoint[] breakpoints;
+
+	private MethodBreakpoints(int[] lines, Breakpoint[] breakpoints) {
+		this.lines = lines;
+		this.breakpoints = breakpoints;
+	}
+
+	MethodBreakpoints add(Breakpoint breakpoint) {
+		int line = breakpoint.getLine();
+		// After all breakpoints on the same line, so these stay in the order they were set.
+		int index = 0;
+		while (index < lines.length && lines[index] <= line) {
+			index++;
+		}
+		int[] newLines = new int[lines.length + 1];
+		Breakpoint[] newBreakpoints = new Breakpoint[breakpoints.length + 1];
+		System.arraycopy(lines, 0, newLines, 0, index);
+		System.arraycopy(breakpoints, 0, newBreakpoints, 0, index);
+		newLines[index] = line;
+		newBreakpoints[index] = breakpoint;
+		System.arraycopy(lines, index, newLines, index + 1, lines.length - index);
+		System.arraycopy(breakpoints, index, newBreakpoints, index + 1, breakpoints.length - index);
+		return new MethodBreakpoints(newLines, newBreakpoints);
+	}
+
+	/**
+	 * A copy without the given breakpoint, or this when it isn't there.
+	 */
+	MethodBreakpoints remove(Breakpoint breakpoint) {
+		int index = 0;
+		while (index < breakpoints.length && breakpoints[index] != breakpoint) {
+			index++;
+		}
+		if (index == breakpoints.length) {
+			return this;
+		}
+		int[] newLines = new int[lines.length - 1];
+		Breakpoint[] newBreakpoints = new Breakpoint[breakpoints.length - 1];
+		System.arraycopy(lines, 0, newLines, 0, index);
+		System.arraycopy(breakpoints, 0, newBreakpoints, 0, index);
+		System.arraycopy(lines, index + 1, newLines, index, newLines.length - index);
+		System.arraycopy(breakpoints, index + 1, newBreakpoints, index, newBreakpoints.length - index);
+		return new MethodBreakpoints(newLines, newBreakpoints);
+	}
+
+	int size() {
+		return lines.length;
+	}
+
+	int getLine(int index) {
+		return lines[index];
+	}
+
+	Breakpoint getBreakpoint(int index) {
+		return breakpoints[index];
+	}
+}
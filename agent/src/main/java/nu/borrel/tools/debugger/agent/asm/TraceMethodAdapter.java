@@ -0,0 +1,75 @@
+package nu.borrel.tools.debugger.agent.asm;
+
+import nu.borrel.tools.debugger.agent.asm.asm4.Label;
+import nu.borrel.tools.debugger.agent.asm.asm4.MethodVisitor;
+import nu.borrel.tools.debugger.agent.asm.asm4.Type;
+import nu.borrel.tools.debugger.agent.asm.asm4.commons.AdviceAdapter;
+import nu.borrel.tools.debugger.agent.asm.asm4.commons.Method;
+
+/**
+ * Times a method for a {@link nu.borrel.tools.debugger.agent.MethodTrace}.
+ *
+ * The start time goes into a new local on entry. Every return hands the return value and the start time to the agent,
+ * and a handler around the whole method does the same for exceptions before rethrowing them. The handler adds code
+ * after the last instruction, so the frames of the method must be computed.
+ */
+class TraceMethodAdapter extends AdviceAdapter {
+	private static final Type AGENT = Type.getObjectType("nu/borrel/tools/debugger/agent/DebuggerAgent");
+	private static final Method TRACE_EXIT = Method.getMethod("void traceExit(Object, long, int)");
+	private static final Method TRACE_EXCEPTION = Method.getMethod("void traceException(Throwable, long, int)");
+
+	private final int traceId;
+	private final Label start = new Label();
+	private int startLocal = -1;
+
+	TraceMethodAdapter(MethodVisitor mv, int access, String name, String desc, int traceId) {
+		super(ASM4, mv, access, name, desc);
+		this.traceId = traceId;
+	}
+
+	@Override
+	protected void onMethodEnter() {
+		invokeStatic(Type.getType(System.class), Method.getMethod("long nanoTime()"));
+		startLocal = newLocal(Type.LONG_TYPE);
+		storeLocal(startLocal);
+		visitLabel(start);
+	}
+
+	@Override
+	protected void onMethodExit(int opcode) {
+		if (opcode == ATHROW) {
+			// The handler takes care of these, also of exceptions that are not thrown right here.
+			return;
+		}
+		if (opcode == RETURN) {
+			visitInsn(ACONST_NULL);
+		} else {
+			Type returnType = Type.getReturnType(methodDesc);
+			if (returnType.getSize() == 2) {
+				dup2();
+			} else {
+				dup();
+			}
+			box(returnType);
+		}
+		loadLocal(startLocal);
+		push(traceId);
+		invokeStatic(AGENT, TRACE_EXIT);
+	}
+
+	@Override
+	public void visitMaxs(int maxStack, int maxLocals) {
+		if (startLocal >= 0) {
+			Label handler = new Label();
+			visitTryCatchBlock(start, handler, handler, null);
+			visitLabel(handler);
+			dup();
+			loadLocal(startLocal);
+			push(traceId);
+			invokeStatic(AGENT, TRACE_EXCEPTION);
+			// Not through visitInsn(), that would end up in onMethodExit().
+			mv.visitInsn(ATHROW);
+		}
+		super.visitMaxs(maxStack, maxLocals);
+	}
+}
@@ -0,0 +1,136 @@
+package nu.borrel.tools.debugger.agent.asm;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Instrumented class files, by class name, breakpoint set version, frame computation mode and hash of the original
+ * class file.
+ *
+ * Retransforming a class whose breakpoints did not change, or loading the same class in another loader, then returns
+ * the earlier result without reading or writing the class again. The cache is LRU, bounded by the number of bytes it
+ * holds.
+ */
+public class TransformCache {
+	// Rough size of an entry besides the class file itself
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private static class Key {
+		private final String className;
+		private final int version;
+		private final boolean computeFrames;
+		private final long hash;
+		private final int length;
+
+		Key(String className, int version, boolean computeFrames, long hash, int length) {
+			this.className = className;
+			this.version = version;
+			this.computeFrames = computeFrames;
+			this.hash = hash;
+			this.length = length;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (hash ^ (hash >>> 32)) ^ version * 31 ^ className.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && length == other.length && version == other.version && computeFrames == other.computeFrames && className.equals(other.className);
+		}
+	}
+
+	private final Map<Key, byte[]> entries = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+	private long size;
+	private long maxSize;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public TransformCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the class file.
+	 */
+	public static long hash(byte[] bytes) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < bytes.length; i++) {
+			hash ^= bytes[i] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	public byte[] get(String className, int version, boolean computeFrames, long hash, int length) {
+		byte[] bytes;
+		synchronized (entries) {
+			bytes = entries.get(new Key(className, version, computeFrames, hash, length));
+		}
+		(bytes != null ? hits : misses).incrementAndGet();
+		return bytes;
+	}
+
+	public void put(String className, int version, boolean computeFrames, long hash, int length, byte[] bytes) {
+		synchronized (entries) {
+			byte[] previous = entries.put(new Key(className, version, computeFrames, hash, length), bytes);
+			if (previous != null) {
+				size -= previous.length + ENTRY_OVERHEAD;
+			}
+			size += bytes.length + ENTRY_OVERHEAD;
+			evict();
+		}
+	}
+
+	private void evict() {
+		Iterator<byte[]> iterator = entries.values().iterator();
+		while (size > maxSize && iterator.hasNext()) {
+			size -= iterator.next().length + ENTRY_OVERHEAD;
+			iterator.remove();
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			size = 0;
+		}
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * The approximate number of bytes held.
+	 */
+	public long getSize() {
+		synchronized (entries) {
+			return size;
+		}
+	}
+
+	public long getMaxSize() {
+		synchronized (entries) {
+			return maxSize;
+		}
+	}
+
+	public void setMaxSize(long maxSize) {
+		synchronized (entries) {
+			this.maxSize = maxSize;
+			evict();
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package nu.borrel.tools.debugger.agent.asm;
+
+/**
+ * Settings shared by all {@link BreakpointClassFileTransformer}s of the agent.
+ */
+public class TransformOptions {
+	private volatile boolean computeFrames;
+
+	/**
+	 * Whether the stack map frames of instrumented methods are recomputed entirely by ASM, rather than only adding
+	 * the frames for the injected code.
+	 */
+	public boolean isComputeFrames() {
+		return computeFrames;
+	}
+
+	public void setComputeFrames(boolean computeFrames) {
+		this.computeFrames = computeFrames;
+	}
+}
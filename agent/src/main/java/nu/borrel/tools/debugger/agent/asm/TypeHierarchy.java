@@ -0,0 +1,202 @@
+package nu.borrel.tools.debugger.agent.asm;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import nu.borrel.tools.debugger.agent.asm.asm4.ClassReader;
+import nu.borrel.tools.debugger.agent.asm.asm4.Opcodes;
+
+/**
+ * Super class information for computing stack map frames, without loading any class.
+ *
+ * The headers of class files are read through the class loader that is transforming, and kept in a bounded LRU cache
+ * shared by all transformers.
+ */
+public class TypeHierarchy {
+	private static final String OBJECT = "java/lang/Object";
+
+	private static class Key {
+		// null for the bootstrap class loader
+		private final WeakReference<ClassLoader> loader;
+		private final String name;
+		private final int hashCode;
+
+		Key(ClassLoader loader, String name) {
+			this.loader = loader != null ? new WeakReference<ClassLoader>(loader) : null;
+			this.name = name;
+			this.hashCode = System.identityHashCode(loader) * 31 + name.hashCode();
+		}
+
+		private ClassLoader getLoader() {
+			return loader != null ? loader.get() : null;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			if (hashCode != other.hashCode || !name.equals(other.name) || (loader == null) != (other.loader == null)) {
+				return false;
+			}
+			// Keys of collected loaders only equal themselves, and eventually get evicted.
+			return loader == null || other == this || (getLoader() != null && getLoader() == other.getLoader());
+		}
+	}
+
+	private static class TypeInfo {
+		private final String superName;
+		private final boolean isInterface;
+
+		TypeInfo(String superName, boolean isInterface) {
+			this.superName = superName;
+			this.isInterface = isInterface;
+		}
+	}
+
+	private final Map<Key, TypeInfo> types;
+
+	public TypeHierarchy(final int capacity) {
+		this.types = new LinkedHashMap<Key, TypeInfo>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, TypeInfo> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Records the class that is being transformed, which may not be readable through its loader yet.
+	 */
+	public void add(ClassLoader loader, ClassReader cr) {
+		TypeInfo info = new TypeInfo(cr.getSuperName(), (cr.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+		synchronized (types) {
+			types.put(new Key(loader, cr.getClassName()), info);
+		}
+	}
+
+	public int size() {
+		synchronized (types) {
+			return types.size();
+		}
+	}
+
+	/**
+	 * The internal name of the closest common super class of both types, as seen from the given loader.
+	 */
+	public String getCommonSuperClass(ClassLoader loader, String type1, String type2) {
+		if (type1.equals(type2)) {
+			return type1;
+		}
+		if (get(loader, type1).isInterface || get(loader, type2).isInterface) {
+			return OBJECT;
+		}
+		Set<String> superNames = new HashSet<String>();
+		for (String name = type2; name != null; name = get(loader, name).superName) {
+			superNames.add(name);
+		}
+		for (String name = type1; name != null; name = get(loader, name).superName) {
+			if (superNames.contains(name)) {
+				return name;
+			}
+		}
+		return OBJECT;
+	}
+
+	private TypeInfo get(ClassLoader loader, String name) {
+		Key key = new Key(loader, name);
+		TypeInfo info;
+		synchronized (types) {
+			info = types.get(key);
+		}
+		if (info == null) {
+			// Reading happens outside of the lock, two threads may both read the same class.
+			try {
+				info = read(loader, name);
+			} catch (IOException e) {
+				throw new RuntimeException("Cannot read class " + name + ": " + e.getMessage(), e);
+			}
+			synchronized (types) {
+				types.put(key, info);
+			}
+		}
+		return info;
+	}
+
+	private static TypeInfo read(ClassLoader loader, String name) throws IOException {
+		String resourceName = name + ".class";
+		InputStream is = loader != null ? loader.getResourceAsStream(resourceName) : ClassLoader.getSystemResourceAsStream(resourceName);
+		if (is == null) {
+			throw new IOException("Not found");
+		}
+		try {
+			// Only the constant pool and the header are read, and the class version is not checked.
+			DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+			if (in.readInt() != 0xCAFEBABE) {
+				throw new IOException("Not a class file");
+			}
+			in.readInt();
+			int count = in.readUnsignedShort();
+			String[] utf8s = new String[count];
+			int[] classes = new int[count];
+			for (int i = 1; i < count; i++) {
+				int tag = in.readUnsignedByte();
+				switch (tag) {
+				case 1: // Utf8
+					utf8s[i] = in.readUTF();
+					break;
+				case 7: // Class
+					classes[i] = in.readUnsignedShort();
+					break;
+				case 8: // String
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					in.skipBytes(2);
+					break;
+				case 15: // MethodHandle
+					in.skipBytes(3);
+					break;
+				case 3: // Integer
+				case 4: // Float
+				case 9: // Fieldref
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+				case 12: // NameAndType
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					in.skipBytes(4);
+					break;
+				case 5: // Long
+				case 6: // Double
+					in.skipBytes(8);
+					i++;
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag " + tag);
+				}
+			}
+			int access = in.readUnsignedShort();
+			in.readUnsignedShort();
+			int superClass = in.readUnsignedShort();
+			return new TypeInfo(superClass != 0 ? utf8s[classes[superClass]] : null, (access & Opcodes.ACC_INTERFACE) != 0);
+		} finally {
+			is.close();
+		}
+	}
+}
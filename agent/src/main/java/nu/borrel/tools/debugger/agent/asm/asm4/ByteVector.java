@@ -47,6 +47,27 @@ public class ByteVector {
      */
     int length;
 
+    /**
+     * Per-thread arrays given back by {@link #release()}, to be reused by
+     * {@link #acquire(int)}.
+     */
+    private static final ThreadLocal<byte[][]> POOL = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[POOL_SIZE][];
+        }
+    };
+
+    /**
+     * Number of arrays kept per thread.
+     */
+    private static final int POOL_SIZE = 2;
+
+    /**
+     * Largest array kept in the pool.
+     */
+    private static final int MAX_POOLED_LENGTH = 1 << 20;
+
     /**
      * Constructs a new {@link ByteVector ByteVector} with a default initial
      * size.
@@ -65,6 +86,57 @@ public class ByteVector {
         data = new byte[initialSize];
     }
 
+    private ByteVector(final byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Returns a {@link ByteVector ByteVector} of at least the given initial
+     * size, reusing an array from the pool of this thread if there is one.
+     *
+     * @param initialSize the minimum initial size of the byte vector.
+     * @return an empty byte vector.
+     */
+    public static ByteVector acquire(final int initialSize) {
+        byte[][] pool = POOL.get();
+        for (int i = 0; i < pool.length; ++i) {
+            byte[] data = pool[i];
+            if (data != null && data.length >= initialSize) {
+                pool[i] = null;
+                return new ByteVector(data);
+            }
+        }
+        return new ByteVector(initialSize);
+    }
+
+    /**
+     * Gives the content array of this vector to the pool of this thread. The
+     * vector must not be used afterwards.
+     */
+    public void release() {
+        byte[] data = this.data;
+        this.data = null;
+        length = 0;
+        if (data == null || data.length > MAX_POOLED_LENGTH) {
+            return;
+        }
+        // Replaces an empty slot, or else the smallest array if it is smaller
+        byte[][] pool = POOL.get();
+        int smallest = 0;
+        for (int i = 0; i < pool.length; ++i) {
+            if (pool[i] == null) {
+                pool[i] = data;
+                return;
+            }
+            if (pool[i].length < pool[smallest].length) {
+                smallest = i;
+            }
+        }
+        if (pool[smallest].length < data.length) {
+            pool[smallest] = data;
+        }
+    }
+
     /**
      * Puts a byte into this byte vector. The byte vector is automatically
      * enlarged if necessary.
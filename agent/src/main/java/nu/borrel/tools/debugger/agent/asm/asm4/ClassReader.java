@@ -213,6 +213,36 @@ public class ClassReader {
         header = index;
     }
 
+    /**
+     * Per-thread buffer for reading strings, so that reading many classes does
+     * not allocate a new buffer for every call. A nested use on the same
+     * thread, for instance from a visitor, gets a fresh buffer.
+     */
+    private static final ThreadLocal<char[]> CHAR_BUFFERS = new ThreadLocal<char[]>();
+
+    /**
+     * Largest buffer kept in {@link #CHAR_BUFFERS}.
+     */
+    private static final int MAX_POOLED_CHARS = 65536;
+
+    private static char[] acquireCharBuffer(final int length) {
+        char[] buf = CHAR_BUFFERS.get();
+        if (buf == null || buf.length < length) {
+            return new char[length];
+        }
+        CHAR_BUFFERS.set(null);
+        return buf;
+    }
+
+    private static void releaseCharBuffer(final char[] buf) {
+        if (buf.length <= MAX_POOLED_CHARS) {
+            char[] pooled = CHAR_BUFFERS.get();
+            if (pooled == null || pooled.length < buf.length) {
+                CHAR_BUFFERS.set(buf);
+            }
+        }
+    }
+
     /**
      * Returns the class's access flags (see {@link Opcodes}). This value may
      * not reflect Deprecated and Synthetic flags when bytecode is before 1.5
@@ -235,7 +265,12 @@ public class ClassReader {
      * @see ClassVisitor#visit(int, int, String, String, String, String[])
      */
     public String getClassName() {
-        return readClass(header + 2, new char[maxStringLength]);
+        char[] buf = acquireCharBuffer(maxStringLength);
+        try {
+            return readClass(header + 2, buf);
+        } finally {
+            releaseCharBuffer(buf);
+        }
     }
 
     /**
@@ -250,7 +285,15 @@ public class ClassReader {
      */
     public String getSuperName() {
         int n = items[readUnsignedShort(header + 4)];
-        return n == 0 ? null : readUTF8(n, new char[maxStringLength]);
+        if (n == 0) {
+            return null;
+        }
+        char[] buf = acquireCharBuffer(maxStringLength);
+        try {
+            return readUTF8(n, buf);
+        } finally {
+            releaseCharBuffer(buf);
+        }
     }
 
     /**
@@ -267,10 +310,14 @@ public class ClassReader {
         int n = readUnsignedShort(index);
         String[] interfaces = new String[n];
         if (n > 0) {
-            char[] buf = new char[maxStringLength];
-            for (int i = 0; i < n; ++i) {
-                index += 2;
-                interfaces[i] = readClass(index, buf);
+            char[] buf = acquireCharBuffer(maxStringLength);
+            try {
+                for (int i = 0; i < n; ++i) {
+                    index += 2;
+                    interfaces[i] = readClass(index, buf);
+                }
+            } finally {
+                releaseCharBuffer(buf);
             }
         }
         return interfaces;
@@ -283,7 +330,15 @@ public class ClassReader {
      * @param classWriter the {@link ClassWriter} to copy constant pool into.
      */
     void copyPool(final ClassWriter classWriter) {
-        char[] buf = new char[maxStringLength];
+        char[] buf = acquireCharBuffer(maxStringLength);
+        try {
+            copyPool(classWriter, buf);
+        } finally {
+            releaseCharBuffer(buf);
+        }
+    }
+
+    private void copyPool(final ClassWriter classWriter, final char[] buf) {
         int ll = items.length;
         Item[] items2 = new Item[ll];
         for (int i = 1; i < ll; i++) {
@@ -555,9 +610,22 @@ public class ClassReader {
         final ClassVisitor classVisitor,
         final Attribute[] attrs,
         final int flags)
+    {
+        char[] c = acquireCharBuffer(maxStringLength); // buffer used to read strings
+        try {
+            accept(classVisitor, attrs, flags, c);
+        } finally {
+            releaseCharBuffer(c);
+        }
+    }
+
+    private void accept(
+        final ClassVisitor classVisitor,
+        final Attribute[] attrs,
+        final int flags,
+        final char[] c)
     {
         byte[] b = this.b; // the bytecode array
-        char[] c = new char[maxStringLength]; // buffer used to read strings
         int i, j, k; // loop variables
         int u, v, w; // indexes in b
         Attribute attr;
@@ -588,9 +588,13 @@ public class ClassWriter extends ClassVisitor {
      *        of this class. See {@link #COMPUTE_MAXS}, {@link #COMPUTE_FRAMES}.
      */
     public ClassWriter(final int flags) {
+        this(flags, new ByteVector());
+    }
+
+    private ClassWriter(final int flags, final ByteVector pool) {
         super(Opcodes.ASM4);
         index = 1;
-        pool = new ByteVector();
+        this.pool = pool;
         items = new Item[256];
         threshold = (int) (0.75d * items.length);
         key = new Item();
@@ -628,7 +632,8 @@ public class ClassWriter extends ClassVisitor {
      *        methods</i>. See {@link #COMPUTE_MAXS}, {@link #COMPUTE_FRAMES}.
      */
     public ClassWriter(final ClassReader classReader, final int flags) {
-        this(flags);
+        // sized for the copied constant pool, with room for new constants
+        this(flags, ByteVector.acquire(classReader.header + 1024));
         classReader.copyPool(this);
         this.cr = classReader;
     }
@@ -929,6 +934,16 @@ public class ClassWriter extends ClassVisitor {
         return out.data;
     }
 
+    /**
+     * Gives the constant pool buffer of this class writer back to the pool of
+     * the current thread, for reuse by the next class writer. This class
+     * writer must not be used afterwards, but the result of
+     * {@link #toByteArray()} remains valid.
+     */
+    public void release() {
+        pool.release();
+    }
+
     // ------------------------------------------------------------------------
     // Utility methods: constant pool management
     // ------------------------------------------------------------------------
@@ -0,0 +1,62 @@
+package nu.borrel.tools.debugger.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class BreakpointPatternsTest {
+	private final Breakpoint services = new Breakpoint(1, "com.example.*Service", "find*", null, null);
+	private final Breakpoint everything = new Breakpoint(2, "com.**", "*", null, null);
+	private final Breakpoint other = new Breakpoint(3, "org.other.Repo?", "*", null, null);
+
+	@Test
+	public void testEmpty() {
+		BreakpointPatterns patterns = new BreakpointPatterns();
+		assertTrue(patterns.isEmpty());
+		assertEquals(Collections.<Breakpoint>emptyList(), patterns.match("com/example/OrderService"));
+	}
+
+	@Test
+	public void testMatch() {
+		BreakpointPatterns patterns = new BreakpointPatterns();
+		patterns.add(services);
+		patterns.add(everything);
+		patterns.add(other);
+		assertFalse(patterns.isEmpty());
+
+		// Shorter prefixes first
+		assertEquals(Arrays.asList(everything, services), patterns.match("com/example/OrderService"));
+		assertEquals(Arrays.asList(everything), patterns.match("com/example/impl/OrderService"));
+		assertEquals(Arrays.asList(other), patterns.match("org/other/RepoA"));
+		assertEquals(Collections.<Breakpoint>emptyList(), patterns.match("org/other/RepoAB"));
+		assertEquals(Collections.<Breakpoint>emptyList(), patterns.match("net/Example"));
+		assertEquals(Collections.<Breakpoint>emptyList(), patterns.match("co"));
+	}
+
+	@Test
+	public void testRemove() {
+		BreakpointPatterns patterns = new BreakpointPatterns();
+		patterns.add(services);
+		patterns.add(other);
+		patterns.remove(services);
+		assertEquals(Collections.<Breakpoint>emptyList(), patterns.match("com/example/OrderService"));
+		assertEquals(Arrays.asList(other), patterns.match("org/other/RepoA"));
+		patterns.remove(other);
+		assertTrue(patterns.isEmpty());
+	}
+
+	@Test
+	public void testMatchesMethod() {
+		assertTrue(services.matchesMethod("findAll"));
+		assertFalse(services.matchesMethod("save"));
+		// Constructors and static initializers only when asked for
+		assertFalse(everything.matchesMethod("<init>"));
+		assertFalse(everything.matchesMethod("<clinit>"));
+		assertTrue(new Breakpoint(4, "com.**", "<init>", null, null).matchesMethod("<init>"));
+	}
+}
@@ -0,0 +1,82 @@
+package nu.borrel.tools.debugger.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import nu.borrel.tools.debugger.agent.asm.ClassDumper;
+import nu.borrel.tools.debugger.agent.asm.TransformCache;
+import nu.borrel.tools.debugger.agent.asm.TransformOptions;
+import nu.borrel.tools.debugger.agent.asm.TypeHierarchy;
+import nu.borrel.tools.debugger.agent.asm.asm4.ClassWriter;
+import nu.borrel.tools.debugger.agent.asm.asm4.Label;
+import nu.borrel.tools.debugger.agent.asm.asm4.MethodVisitor;
+import nu.borrel.tools.debugger.agent.asm.asm4.Opcodes;
+
+import org.junit.Test;
+
+/**
+ * Pattern breakpoints never apply to the agent's own classes, so these go into a generated class
+ * <code>sample.Sample</code> with a method <code>void run()</code>.
+ */
+public class DispatchingClassFileTransformerTest implements Opcodes {
+	private static final String CLASS_NAME = "sample.Sample";
+	private static final String INTERNAL_NAME = "sample/Sample";
+
+	private final DispatchingClassFileTransformer transformer = new DispatchingClassFileTransformer(new LoadedClassIndex(), new ClassDumper(), new TransformOptions(), new TypeHierarchy(16), new TransformCache(1024 * 1024));
+
+	@Test
+	public void testNothingToPlace() throws Exception {
+		// The class matches, but lacks the annotation: no transformer stays behind for it.
+		Breakpoint breakpoint = new Breakpoint(1, CLASS_NAME, "*", null, Deprecated.class.getName());
+		assertEquals(Collections.singleton(CLASS_NAME), transformer.addPatternBreakpoint(breakpoint, Collections.singleton(CLASS_NAME)));
+		assertTrue(transformer.hasTransformer(INTERNAL_NAME));
+		assertEquals(null, transform());
+		assertFalse(transformer.hasTransformer(INTERNAL_NAME));
+
+		// Loading the class again asks the patterns again.
+		assertEquals(null, transform());
+		assertFalse(transformer.hasTransformer(INTERNAL_NAME));
+	}
+
+	@Test
+	public void testPlaced() throws Exception {
+		transformer.addPatternBreakpoint(new Breakpoint(1, CLASS_NAME, "run", null, null), Collections.<String>emptySet());
+		assertNotNull(transform());
+		assertTrue(transformer.hasTransformer(INTERNAL_NAME));
+	}
+
+	@Test
+	public void testExplicitBreakpointKept() throws Exception {
+		// A breakpoint set on the class keeps its transformer, even when nothing is placed.
+		transformer.addPatternBreakpoint(new Breakpoint(1, CLASS_NAME, "*", null, Deprecated.class.getName()), Collections.<String>emptySet());
+		transformer.addBreakpoint(new Breakpoint(2, CLASS_NAME, "missing", 1, null));
+		assertEquals(null, transform());
+		assertTrue(transformer.hasTransformer(INTERNAL_NAME));
+	}
+
+	private byte[] transform() throws Exception {
+		return transformer.transform(null, INTERNAL_NAME, null, null, generate());
+	}
+
+	private static byte[] generate() {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_5, ACC_PUBLIC | ACC_SUPER, INTERNAL_NAME, null, "java/lang/Object", null);
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "run", "()V", null, null);
+		mv.visitCode();
+		Label start = new Label();
+		mv.visitLabel(start);
+		mv.visitLineNumber(1, start);
+		mv.visitInsn(RETURN);
+		Label end = new Label();
+		mv.visitLabel(end);
+		mv.visitLocalVariable("this", "L" + INTERNAL_NAME + ";", null, start, end, 0);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+}
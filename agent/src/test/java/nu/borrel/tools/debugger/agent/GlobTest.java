@@ -0,0 +1,50 @@
+package nu.borrel.tools.debugger.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class GlobTest {
+	@Test
+	public void testStarStaysWithinSegment() {
+		Pattern pattern = Glob.compile("com/example/*Service", '/');
+		assertTrue(pattern.matcher("com/example/OrderService").matches());
+		assertTrue(pattern.matcher("com/example/Service").matches());
+		assertFalse(pattern.matcher("com/example/impl/OrderService").matches());
+		assertFalse(pattern.matcher("com/example/OrderServiceImpl").matches());
+	}
+
+	@Test
+	public void testDoubleStarCrossesSegments() {
+		Pattern pattern = Glob.compile("com/**/*Service", '/');
+		assertTrue(pattern.matcher("com/example/impl/OrderService").matches());
+		assertFalse(pattern.matcher("org/example/OrderService").matches());
+	}
+
+	@Test
+	public void testQuestionMark() {
+		Pattern pattern = Glob.compile("get?", (char) 0);
+		assertTrue(pattern.matcher("getX").matches());
+		assertFalse(pattern.matcher("get").matches());
+		assertFalse(pattern.matcher("getXY").matches());
+	}
+
+	@Test
+	public void testSpecialCharactersAreLiteral() {
+		Pattern pattern = Glob.compile("Outer$Inner", '/');
+		assertTrue(pattern.matcher("Outer$Inner").matches());
+		assertTrue(Glob.compile("<init>", (char) 0).matcher("<init>").matches());
+		assertFalse(Glob.compile("a.b", '/').matcher("axb").matches());
+	}
+
+	@Test
+	public void testLiteralPrefix() {
+		assertEquals("com/example/", Glob.literalPrefix("com/example/*Service"));
+		assertEquals("com/ex", Glob.literalPrefix("com/ex?mple/**"));
+		assertEquals("com/example/Service", Glob.literalPrefix("com/example/Service"));
+	}
+}
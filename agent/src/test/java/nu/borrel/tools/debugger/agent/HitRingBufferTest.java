@@ -0,0 +1,113 @@
+package nu.borrel.tools.debugger.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class HitRingBufferTest {
+	private static final CaptureLayout LAYOUT = CaptureLayout.register(new Breakpoint(1, "Test", "test", null, null), "Test", "test", new String[] { "i" }, new String[] { "I" }, new int[] { 0 });
+
+	private final HitRingBuffer ringBuffer = new HitRingBuffer(4);
+
+	@Test
+	public void testAwaitReturnsWithHits() {
+		offer(1);
+		long start = System.nanoTime();
+		ringBuffer.await(0);
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+		assertEquals(1, ringBuffer.poll().getTimestamp());
+	}
+
+	@Test
+	public void testAwaitTimesOut() {
+		long start = System.nanoTime();
+		ringBuffer.await(TimeUnit.MILLISECONDS.toNanos(20));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(10));
+		assertEquals(null, ringBuffer.poll());
+	}
+
+	@Test
+	public void testOfferWakesWaiter() throws InterruptedException {
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				offer(2);
+			}
+		};
+		producer.start();
+		long start = System.nanoTime();
+		HitEvent event;
+		while ((event = ringBuffer.poll()) == null) {
+			ringBuffer.await(0);
+			assertTrue("Not woken up", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+		}
+		assertNotNull(event);
+		assertEquals(2, event.getTimestamp());
+		producer.join();
+	}
+
+	@Test
+	public void testDropOldest() {
+		ringBuffer.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+		for (int i = 1; i <= 5; i++) {
+			offer(i);
+		}
+		assertEquals(1, ringBuffer.getDroppedCount());
+		for (int i = 2; i <= 5; i++) {
+			HitEvent event = ringBuffer.poll();
+			assertEquals(i, event.getTimestamp());
+			ringBuffer.release(event);
+		}
+	}
+
+	@Test
+	public void testDropOldestWhileDispatching() {
+		// The dispatcher holds the first two hits, the slot of the next hit is not free before they are released.
+		ringBuffer.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+		for (int i = 1; i <= 4; i++) {
+			offer(i);
+		}
+		HitEvent first = ringBuffer.poll();
+		HitEvent second = ringBuffer.poll();
+		for (int i = 5; i <= 8; i++) {
+			assertFalse(tryOffer(i));
+		}
+		assertEquals(4, ringBuffer.getDroppedCount());
+		assertEquals(2, ringBuffer.size());
+
+		// The queued hits were kept.
+		ringBuffer.release(first);
+		ringBuffer.release(second);
+		offer(9);
+		int[] expected = { 3, 4, 9 };
+		for (int timestamp : expected) {
+			HitEvent event = ringBuffer.poll();
+			assertEquals(timestamp, event.getTimestamp());
+			ringBuffer.release(event);
+		}
+		assertEquals(4, ringBuffer.getDroppedCount());
+	}
+
+	private void offer(long timestamp) {
+		assertTrue(tryOffer(timestamp));
+	}
+
+	private boolean tryOffer(long timestamp) {
+		CaptureBuffer buffer = CaptureBuffer.acquire(1).putInt(0, 42);
+		try {
+			return ringBuffer.offer(buffer, null, LAYOUT, timestamp, null);
+		} finally {
+			buffer.release();
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package nu.borrel.tools.debugger.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Round trips through {@link SnapshotEncoder} and {@link SnapshotDecoder}.
+ */
+public class SnapshotEncoderTest {
+	private static final long NO_TIME_LIMIT = 60 * 1000 * 1000;
+	private static final String OBJECT = "Ljava/lang/Object;";
+
+	private final SnapshotEncoder encoder = new SnapshotEncoder(64 * 1024);
+
+	/**
+	 * Stands in for a lazy collection, which must not be touched.
+	 */
+	private static class LazyList extends AbstractList<Object> {
+		@Override
+		public Object get(int index) {
+			throw new AssertionError("Iterated");
+		}
+
+		@Override
+		public int size() {
+			throw new AssertionError("Asked for its size");
+		}
+
+		@Override
+		public String toString() {
+			throw new AssertionError("Asked for its text");
+		}
+	}
+
+	@Test
+	public void testPrimitives() {
+		encoder.begin(SnapshotLimits.DEFAULT);
+		encoder.addVariable("z", "Z", 1, null);
+		encoder.addVariable("b", "B", -3, null);
+		encoder.addVariable("c", "C", 'x', null);
+		encoder.addVariable("s", "S", Short.MIN_VALUE, null);
+		encoder.addVariable("i", "I", -5, null);
+		encoder.addVariable("j", "J", Long.MIN_VALUE, null);
+		encoder.addVariable("f", "F", Float.floatToRawIntBits(1.5f), null);
+		encoder.addVariable("d", "D", Double.doubleToRawLongBits(-0.25), null);
+		Map<String, Serializable> variables = SnapshotDecoder.decode(encoder.end());
+
+		assertEquals(Arrays.asList("z", "b", "c", "s", "i", "j", "f", "d"), new ArrayList<String>(variables.keySet()));
+		assertEquals(Boolean.TRUE, variables.get("z"));
+		assertEquals(Byte.valueOf((byte) -3), variables.get("b"));
+		assertEquals(Character.valueOf('x'), variables.get("c"));
+		assertEquals(Short.valueOf(Short.MIN_VALUE), variables.get("s"));
+		assertEquals(Integer.valueOf(-5), variables.get("i"));
+		assertEquals(Long.valueOf(Long.MIN_VALUE), variables.get("j"));
+		assertEquals(Float.valueOf(1.5f), variables.get("f"));
+		assertEquals(Double.valueOf(-0.25), variables.get("d"));
+	}
+
+	@Test
+	public void testStrings() {
+		encoder.begin(new SnapshotLimits(3, 16, 32, 5, 16 * 1024, NO_TIME_LIMIT));
+		encoder.addVariable("short", OBJECT, 0, "a\u00e9\u20ac");
+		encoder.addVariable("long", OBJECT, 0, "abcdefgh");
+		encoder.addVariable("null", OBJECT, 0, null);
+		Map<String, Serializable> variables = SnapshotDecoder.decode(encoder.end());
+
+		assertEquals("a\u00e9\u20ac", variables.get("short"));
+		assertEquals("abcde" + SnapshotDecoder.TRUNCATED, variables.get("long"));
+		assertTrue(variables.containsKey("null"));
+		assertEquals(null, variables.get("null"));
+	}
+
+	@Test
+	public void testCollections() {
+		encoder.begin(new SnapshotLimits(3, 2, 32, 256, 16 * 1024, NO_TIME_LIMIT));
+		encoder.addVariable("list", OBJECT, 0, new ArrayList<Object>(Arrays.asList(1, "two")));
+		encoder.addVariable("longList", OBJECT, 0, new ArrayList<Object>(Arrays.asList(1, 2, 3)));
+		encoder.addVariable("array", "[I", 0, new int[] { 4, 5 });
+		Map<String, Serializable> variables = SnapshotDecoder.decode(encoder.end());
+
+		assertEquals(Arrays.<Object>asList(1, "two"), variables.get("list"));
+		assertEquals(Arrays.<Object>asList(1, 2, SnapshotDecoder.TRUNCATED), variables.get("longList"));
+		assertEquals(Arrays.<Object>asList(4, 5), variables.get("array"));
+	}
+
+	@Test
+	public void testJdkValues() {
+		encoder.begin(SnapshotLimits.DEFAULT);
+		encoder.addVariable("decimal", OBJECT, 0, new BigDecimal("1.50"));
+		encoder.addVariable("class", OBJECT, 0, String.class);
+		Map<String, Serializable> variables = SnapshotDecoder.decode(encoder.end());
+
+		assertEquals("1.50", ((ObjectSnapshot) variables.get("decimal")).getText());
+		assertEquals("class java.lang.String", ((ObjectSnapshot) variables.get("class")).getText());
+	}
+
+	@Test
+	public void testJdkWrappers() {
+		// The wrappers would pass toString(), size() and iteration on to the lazy list.
+		List<Object> unmodifiable = Collections.unmodifiableList(new LazyList());
+		encoder.begin(SnapshotLimits.DEFAULT);
+		encoder.addVariable("unmodifiable", OBJECT, 0, unmodifiable);
+		encoder.addVariable("synchronized", OBJECT, 0, Collections.synchronizedCollection(new LazyList()));
+		encoder.addVariable("reference", OBJECT, 0, new AtomicReference<Object>(new LazyList()));
+		encoder.addVariable("after", "I", 7, null);
+		Map<String, Serializable> variables = SnapshotDecoder.decode(encoder.end());
+
+		assertEquals(unmodifiable.getClass().getName(), ((ObjectSnapshot) variables.get("unmodifiable")).getClassName());
+		assertEquals(AtomicReference.class.getName(), ((ObjectSnapshot) variables.get("reference")).getClassName());
+		assertEquals(Integer.valueOf(7), variables.get("after"));
+	}
+
+	@Test
+	public void testMapKeyLikeMarker() {
+		// A key that reads like the marker of truncated entries is still followed by its value.
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		map.put(SnapshotDecoder.TRUNCATED, 1);
+		map.put("b", 2);
+		encoder.begin(SnapshotLimits.DEFAULT);
+		encoder.addVariable("map", OBJECT, 0, map);
+		encoder.addVariable("after", "I", 7, null);
+		Map<String, Serializable> variables = SnapshotDecoder.decode(encoder.end());
+
+		assertEquals(map, variables.get("map"));
+		assertEquals(Integer.valueOf(7), variables.get("after"));
+	}
+
+	@Test
+	public void testMapTruncated() {
+		Map<String, Integer> map = new LinkedHashMap<String, Integer>();
+		map.put("a", 1);
+		map.put("b", 2);
+		map.put("c", 3);
+		encoder.begin(new SnapshotLimits(3, 2, 32, 256, 16 * 1024, NO_TIME_LIMIT));
+		encoder.addVariable("map", OBJECT, 0, map);
+		Map<String, Serializable> variables = SnapshotDecoder.decode(encoder.end());
+
+		Map<Serializable, Serializable> expected = new LinkedHashMap<Serializable, Serializable>();
+		expected.put("a", 1);
+		expected.put("b", 2);
+		expected.put(SnapshotDecoder.TRUNCATED, SnapshotDecoder.TRUNCATED);
+		assertEquals(expected, variables.get("map"));
+	}
+
+	@Test
+	public void testTooDeep() {
+		List<Object> inner = Collections.<Object>singletonList("x");
+		List<Object> outer = new ArrayList<Object>(Collections.singletonList(new ArrayList<Object>(Collections.singletonList(inner))));
+		encoder.begin(new SnapshotLimits(2, 16, 32, 256, 16 * 1024, NO_TIME_LIMIT));
+		encoder.addVariable("outer", OBJECT, 0, outer);
+		Map<String, Serializable> variables = SnapshotDecoder.decode(encoder.end());
+
+		List<?> decodedOuter = (List<?>) variables.get("outer");
+		List<?> decodedMiddle = (List<?>) decodedOuter.get(0);
+		ObjectSnapshot decodedInner = (ObjectSnapshot) decodedMiddle.get(0);
+		assertEquals(inner.getClass().getName(), decodedInner.getClassName());
+	}
+
+	@Test
+	public void testMaxBytes() {
+		// The variables that don't fit are left out, and the snapshot stays well-formed.
+		String text = "0123456789";
+		List<Object> texts = new ArrayList<Object>();
+		for (int i = 0; i < 4; i++) {
+			text += text;
+			texts.add(text);
+		}
+		encoder.begin(new SnapshotLimits(3, 16, 32, 256, 256, NO_TIME_LIMIT));
+		encoder.addVariable("first", OBJECT, 0, "0123456789");
+		encoder.addVariable("second", OBJECT, 0, texts);
+		encoder.addVariable("third", "I", 3, null);
+		Map<String, Serializable> variables = SnapshotDecoder.decode(encoder.end());
+
+		assertEquals("0123456789", variables.get("first"));
+		List<?> decodedTexts = (List<?>) variables.get("second");
+		assertEquals(SnapshotDecoder.TRUNCATED, decodedTexts.get(decodedTexts.size() - 1));
+		assertEquals(SnapshotDecoder.TRUNCATED, variables.get(SnapshotDecoder.TRUNCATED));
+		assertEquals(null, variables.get("third"));
+	}
+}
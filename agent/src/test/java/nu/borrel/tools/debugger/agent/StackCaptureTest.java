@@ -0,0 +1,59 @@
+package nu.borrel.tools.debugger.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class StackCaptureTest {
+	@Test
+	public void testTop() {
+		StackTraceElement[] stack = entrypoint(StackCapture.create(StackCapture.Mode.TOP, 2)).getStackTrace();
+		assertEquals(2, stack.length);
+		assertEquals("testTop", stack[0].getMethodName());
+	}
+
+	@Test
+	public void testRepeated() {
+		// The walk function is reused for every hit.
+		StackCapture capture = StackCapture.create(StackCapture.Mode.TOP, 1);
+		for (int i = 0; i < 3; i++) {
+			StackTraceElement[] stack = entrypoint(capture).getStackTrace();
+			assertEquals(1, stack.length);
+			assertEquals("testRepeated", stack[0].getMethodName());
+		}
+	}
+
+	@Test
+	public void testFull() {
+		StackTraceElement[] stack = entrypoint(StackCapture.FULL).getStackTrace();
+		assertTrue(stack.length > 1);
+		assertEquals("testFull", stack[0].getMethodName());
+	}
+
+	@Test
+	public void testSkip() {
+		StackTraceElement[] stack = skipped(StackCapture.create(1, 1));
+		assertEquals(1, stack.length);
+		assertEquals("testSkip", stack[0].getMethodName());
+	}
+
+	@Test
+	public void testOff() {
+		assertEquals(null, entrypoint(StackCapture.OFF));
+	}
+
+	/**
+	 * Stands in for the method the breakpoint is in, calling the entrypoint.
+	 */
+	private static StackTraceElement[] skipped(StackCapture capture) {
+		return entrypoint(capture).getStackTrace();
+	}
+
+	/**
+	 * Stands in for the {@link DebuggerAgent} entrypoint, whose frame is skipped.
+	 */
+	private static CapturedStack entrypoint(StackCapture capture) {
+		return capture.capture();
+	}
+}
@@ -0,0 +1,79 @@
+package nu.borrel.tools.debugger.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TopKTest {
+	@Test
+	public void testCounts() {
+		TopK topK = new TopK(2);
+		for (int i = 0; i < 3; i++) {
+			topK.add("a");
+		}
+		topK.add("b");
+		topK.add(Boolean.TRUE);
+		topK.add(Boolean.TRUE);
+
+		List<TopK.Entry> top = topK.top();
+		assertEquals(2, top.size());
+		assertEquals("a", top.get(0).getKey());
+		assertEquals(3, top.get(0).getCount());
+		assertEquals(0, top.get(0).getError());
+		assertEquals(Boolean.TRUE, top.get(1).getKey());
+		assertEquals(2, top.get(1).getCount());
+	}
+
+	@Test
+	public void testReplace() {
+		// More keys than slots: the frequent one survives, and replaced counts show up as error.
+		TopK topK = new TopK(1);
+		for (int i = 0; i < 1000; i++) {
+			topK.add("frequent");
+			topK.add(Integer.valueOf(i));
+		}
+		TopK.Entry top = topK.top().get(0);
+		assertEquals("frequent", top.getKey());
+		assertTrue(top.getCount() - top.getError() <= 1000);
+		assertTrue(top.getCount() >= 1000);
+	}
+
+	@Test
+	public void testConcurrent() throws InterruptedException {
+		final TopK topK = new TopK(4);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						topK.add("a");
+						topK.add(Character.valueOf((char) ('b' + i % 2)));
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long total = 0;
+		for (TopK.Entry entry : topK.top()) {
+			total += entry.getCount();
+		}
+		assertEquals(80000, total);
+		assertEquals("a", topK.top().get(0).getKey());
+		assertEquals(40000, topK.top().get(0).getCount());
+	}
+
+	@Test
+	public void testReset() {
+		TopK topK = new TopK(2);
+		topK.add("a");
+		topK.reset();
+		assertEquals(0, topK.top().size());
+	}
+}
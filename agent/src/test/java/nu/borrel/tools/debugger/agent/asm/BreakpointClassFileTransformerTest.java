@@ -0,0 +1,73 @@
+package nu.borrel.tools.debugger.agent.asm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import nu.borrel.tools.debugger.agent.Breakpoint;
+import nu.borrel.tools.debugger.agent.asm.BreakpointClassVisitorTest.Target;
+
+import org.junit.Test;
+
+public class BreakpointClassFileTransformerTest {
+	private static final String INTERNAL_NAME = Target.class.getName().replace('.', '/');
+
+	private final TransformCache cache = new TransformCache(1024 * 1024);
+	private final BreakpointClassFileTransformer transformer = new BreakpointClassFileTransformer(Target.class.getName(), new ClassDumper(), new TransformOptions(), new TypeHierarchy(16), cache);
+	private final ClassLoader loader = Target.class.getClassLoader();
+
+	@Test
+	public void testPrecompute() throws Exception {
+		byte[] original = readClass(Target.class);
+		transformer.addBreakpoint(breakpoint(1, "loopAtStart"));
+		assertNotNull(transformer.transform(loader, INTERNAL_NAME, null, null, original));
+		assertSame(original, transformer.getOriginal(loader));
+
+		// Another breakpoint: the retransformation gets the result precomputed from the same bytes.
+		transformer.addBreakpoint(breakpoint(2, "<init>"));
+		transformer.precompute(loader, transformer.getOriginal(loader));
+		long misses = cache.getMissCount();
+		long hits = cache.getHitCount();
+		assertNotNull(transformer.transform(loader, INTERNAL_NAME, null, null, original.clone()));
+		assertEquals(misses, cache.getMissCount());
+		assertEquals(hits + 1, cache.getHitCount());
+	}
+
+	@Test
+	public void testOriginalReleased() throws Exception {
+		Breakpoint breakpoint = breakpoint(1, "loopAtStart");
+		transformer.addBreakpoint(breakpoint);
+		transformer.transform(loader, INTERNAL_NAME, null, null, readClass(Target.class));
+		assertNotNull(transformer.getOriginal(loader));
+
+		transformer.removeBreakpoint(breakpoint);
+		assertTrue(transformer.isEmpty());
+		assertEquals(null, transformer.getOriginal(loader));
+	}
+
+	private static Breakpoint breakpoint(int id, String methodPattern) {
+		Breakpoint breakpoint = new Breakpoint(id, Target.class.getName(), methodPattern, null, null);
+		breakpoint.getGuard().setHitCount(Long.MAX_VALUE);
+		return breakpoint;
+	}
+
+	private static byte[] readClass(Class<?> c) throws IOException {
+		InputStream in = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package nu.borrel.tools.debugger.agent.asm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import nu.borrel.tools.debugger.agent.Breakpoint;
+import nu.borrel.tools.debugger.agent.asm.asm4.ClassReader;
+import nu.borrel.tools.debugger.agent.asm.asm4.ClassVisitor;
+import nu.borrel.tools.debugger.agent.asm.asm4.Label;
+import nu.borrel.tools.debugger.agent.asm.asm4.MethodVisitor;
+import nu.borrel.tools.debugger.agent.asm.asm4.Opcodes;
+
+import org.junit.Test;
+
+/**
+ * Instruments the methods of {@link Target}, and checks that the JVM accepts and runs the result.
+ */
+public class BreakpointClassVisitorTest {
+	public static class Base {
+		public final String name;
+
+		public Base(String name) {
+			this.name = name;
+		}
+	}
+
+	public static class Target extends Base {
+		public final int value;
+
+		public Target(int value) {
+			super(new StringBuilder("target").append(value).toString());
+			this.value = value * 2;
+		}
+
+		public static int loopAtStart(int n) {
+			while (true) {
+				n--;
+				if (n < 0) {
+					break;
+				}
+			}
+			return n;
+		}
+	}
+
+	private static class TargetClassLoader extends ClassLoader {
+		TargetClassLoader() {
+			super(BreakpointClassVisitorTest.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	@Test
+	public void testLoopAtStart() throws Exception {
+		// The method has a frame at offset 0, besides its implicit one.
+		Class<?> c = instrument(lineBreakpoint("loopAtStart", 0, null), false);
+		assertEquals(-1, c.getMethod("loopAtStart", int.class).invoke(null, 3));
+	}
+
+	@Test
+	public void testLoopAtStartComputeFrames() throws Exception {
+		Class<?> c = instrument(lineBreakpoint("loopAtStart", 0, null), true);
+		assertEquals(-1, c.getMethod("loopAtStart", int.class).invoke(null, 3));
+	}
+
+	@Test
+	public void testConstructorBeforeSuper() throws Exception {
+		// The first line is the super constructor call, 'this' is not initialized yet.
+		checkConstructor(instrument(lineBreakpoint("<init>", 0, "value > 0"), false));
+		checkConstructor(instrument(lineBreakpoint("<init>", 0, "value > 0"), true));
+	}
+
+	@Test
+	public void testConstructorAfterSuper() throws Exception {
+		checkConstructor(instrument(lineBreakpoint("<init>", 1, "this.value == 0"), false));
+		checkConstructor(instrument(lineBreakpoint("<init>", 1, "this.value == 0"), true));
+	}
+
+	@Test
+	public void testConstructorPattern() throws Exception {
+		Breakpoint breakpoint = new Breakpoint(1, Target.class.getName(), "<init>", null, null);
+		breakpoint.getGuard().setHitCount(Long.MAX_VALUE);
+		checkConstructor(instrument(breakpoint, false));
+	}
+
+	private static void checkConstructor(Class<?> c) throws Exception {
+		Object target = c.getConstructor(int.class).newInstance(3);
+		assertEquals(6, c.getField("value").get(target));
+		assertEquals("target3", c.getField("name").get(target));
+	}
+
+	/**
+	 * A breakpoint at the given line of the method, counting from its first line. The breakpoint never fires, the
+	 * tests are about the code around it.
+	 */
+	private static Breakpoint lineBreakpoint(String methodName, int lineIndex, String condition) throws IOException {
+		List<Integer> lines = new ArrayList<Integer>(lines(readClass(Target.class), methodName));
+		Breakpoint breakpoint = new Breakpoint(1, Target.class.getName(), methodName, lines.get(lineIndex), condition != null ? Condition.parse(condition) : null);
+		breakpoint.getGuard().setHitCount(Long.MAX_VALUE);
+		return breakpoint;
+	}
+
+	/**
+	 * Instruments {@link Target}, and defines the result in a new loader.
+	 */
+	private static Class<?> instrument(Breakpoint breakpoint, boolean computeFrames) throws Exception {
+		byte[] original = readClass(Target.class);
+
+		TransformOptions options = new TransformOptions();
+		options.setComputeFrames(computeFrames);
+		BreakpointClassFileTransformer transformer = new BreakpointClassFileTransformer(Target.class.getName(), new ClassDumper(), options, new TypeHierarchy(16), new TransformCache(1024 * 1024));
+		transformer.addBreakpoint(breakpoint);
+		byte[] bytes = transformer.transform(Target.class.getClassLoader(), Target.class.getName().replace('.', '/'), null, null, original);
+		assertNotNull(bytes);
+		return new TargetClassLoader().define(Target.class.getName(), bytes);
+	}
+
+	private static SortedSet<Integer> lines(byte[] bytes, final String methodName) {
+		final SortedSet<Integer> lines = new TreeSet<Integer>();
+		new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM4) {
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+				if (!name.equals(methodName)) {
+					return null;
+				}
+				return new MethodVisitor(Opcodes.ASM4) {
+					@Override
+					public void visitLineNumber(int lineNumber, Label start) {
+						lines.add(lineNumber);
+					}
+				};
+			}
+		}, 0);
+		return lines;
+	}
+
+	private static byte[] readClass(Class<?> c) throws IOException {
+		InputStream in = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class");
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+}
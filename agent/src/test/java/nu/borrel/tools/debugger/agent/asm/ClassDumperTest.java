@@ -0,0 +1,44 @@
+package nu.borrel.tools.debugger.agent.asm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ClassDumperTest {
+	@Test
+	public void testRotateOnlyDumps() throws IOException {
+		File directory = File.createTempFile("dumps", "");
+		assertTrue(directory.delete() && directory.mkdir());
+		try {
+			create(directory, "notes.txt", 1000);
+			create(directory, "Other.class", 1000);
+			create(directory, "com.example.Foo-100.class", 2000);
+			create(directory, "com.example.Foo-100.txt", 2000);
+			create(directory, "com.example.Foo$Bar-200.class", 3000);
+			create(directory, "com.example.Foo$Bar-200.txt", 3000);
+
+			ClassDumper.rotate(directory, 2);
+
+			Set<String> expected = new HashSet<String>(Arrays.asList("notes.txt", "Other.class", "com.example.Foo$Bar-200.class", "com.example.Foo$Bar-200.txt"));
+			assertEquals(expected, new HashSet<String>(Arrays.asList(directory.list())));
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	private static void create(File directory, String name, long lastModified) throws IOException {
+		File file = new File(directory, name);
+		assertTrue(file.createNewFile());
+		file.setLastModified(lastModified * 1000);
+	}
+}
@@ -0,0 +1,161 @@
+package nu.borrel.tools.debugger.agent.asm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import nu.borrel.tools.debugger.agent.Breakpoint;
+import nu.borrel.tools.debugger.agent.asm.BreakpointDescriptor.Field;
+import nu.borrel.tools.debugger.agent.asm.asm4.ClassWriter;
+import nu.borrel.tools.debugger.agent.asm.asm4.Label;
+import nu.borrel.tools.debugger.agent.asm.asm4.MethodVisitor;
+import nu.borrel.tools.debugger.agent.asm.asm4.Opcodes;
+
+import org.junit.Test;
+
+/**
+ * Compiles conditions into <code>static boolean matches(int i, long j, double d, String s, boolean b)</code> of a
+ * generated class, which also has a static field <code>int count</code>, and runs them.
+ */
+public class ConditionCompilerTest implements Opcodes {
+	private static final String CLASS_NAME = "nu/borrel/tools/debugger/agent/asm/ConditionProbe";
+	private static final String METHOD_DESC = "(IJDLjava/lang/String;Z)Z";
+
+	private static class ProbeClassLoader extends ClassLoader {
+		ProbeClassLoader() {
+			super(ConditionCompilerTest.class.getClassLoader());
+		}
+
+		Class<?> define(byte[] bytes) {
+			return defineClass(CLASS_NAME.replace('/', '.'), bytes, 0, bytes.length);
+		}
+	}
+
+	@Test
+	public void testExponent() throws Exception {
+		Method matches = compile("d < 1e-3");
+		assertEquals(true, matches(matches, 0, 0, 0.0001, null, false));
+		assertEquals(false, matches(matches, 0, 0, 0.01, null, false));
+
+		matches = compile("d == -2.5E+2");
+		assertEquals(true, matches(matches, 0, 0, -250, null, false));
+		assertEquals(false, matches(matches, 0, 0, 250, null, false));
+	}
+
+	@Test
+	public void testMinus() throws Exception {
+		// Without the exponent, the minus still starts the next number.
+		Method matches = compile("i>-1");
+		assertEquals(true, matches(matches, 0, 0, 0, null, false));
+		assertEquals(false, matches(matches, -1, 0, 0, null, false));
+	}
+
+	@Test
+	public void testNumbers() throws Exception {
+		Method matches = compile("i < j");
+		assertEquals(true, matches(matches, 1, 2, 0, null, false));
+		assertEquals(false, matches(matches, 2, 2, 0, null, false));
+
+		matches = compile("j >= 3000000000L && i != 0");
+		assertEquals(true, matches(matches, 1, 3000000000L, 0, null, false));
+		assertEquals(false, matches(matches, 0, 3000000000L, 0, null, false));
+
+		matches = compile("d > i");
+		assertEquals(true, matches(matches, 1, 0, 1.5, null, false));
+		assertEquals(false, matches(matches, 1, 0, Double.NaN, null, false));
+	}
+
+	@Test
+	public void testStrings() throws Exception {
+		Method matches = compile("s == \"abc\"");
+		assertEquals(true, matches(matches, 0, 0, 0, "abc", false));
+		assertEquals(false, matches(matches, 0, 0, 0, "abd", false));
+		assertEquals(false, matches(matches, 0, 0, 0, null, false));
+
+		matches = compile("s != null && s.equals(\"x\")");
+		assertEquals(true, matches(matches, 0, 0, 0, "x", false));
+		assertEquals(false, matches(matches, 0, 0, 0, null, false));
+	}
+
+	@Test
+	public void testLogic() throws Exception {
+		Method matches = compile("b && !(i > 3) || s == null");
+		assertEquals(true, matches(matches, 1, 0, 0, "", true));
+		assertEquals(false, matches(matches, 4, 0, 0, "", true));
+		assertEquals(false, matches(matches, 1, 0, 0, "", false));
+		assertEquals(true, matches(matches, 4, 0, 0, null, false));
+	}
+
+	@Test
+	public void testStaticField() throws Exception {
+		Method matches = compile("count == 0 && this.count < i");
+		assertEquals(true, matches(matches, 1, 0, 0, null, false));
+		assertEquals(false, matches(matches, 0, 0, 0, null, false));
+	}
+
+	@Test
+	public void testErrors() {
+		assertInvalid("unknown > 1");
+		assertInvalid("s > 1");
+		assertInvalid("i");
+		assertInvalid("instanceField == 1");
+	}
+
+	private static void assertInvalid(String condition) {
+		try {
+			new ConditionCompiler(Condition.parse(condition), descriptor(condition), true, true);
+			fail("Compiled '" + condition + "'");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	private static boolean matches(Method matches, int i, long j, double d, String s, boolean b) throws Exception {
+		return ((Boolean) matches.invoke(null, i, j, d, s, b)).booleanValue();
+	}
+
+	private static BreakpointDescriptor descriptor(String condition) {
+		Map<String, Field> fields = new HashMap<String, Field>();
+		fields.put("count", new Field("count", "I", true));
+		fields.put("instanceField", new Field("instanceField", "I", false));
+		Breakpoint breakpoint = new Breakpoint(1, CLASS_NAME.replace('/', '.'), "matches", 1, Condition.parse(condition));
+		BreakpointDescriptor descriptor = new BreakpointDescriptor(CLASS_NAME, "matches", METHOD_DESC, breakpoint, fields);
+		descriptor.setLabel(new Label(), 1);
+		descriptor.addLocalVariable("i", "I", null, null, 0, 0, 2);
+		descriptor.addLocalVariable("j", "J", null, null, 1, 0, 2);
+		descriptor.addLocalVariable("d", "D", null, null, 3, 0, 2);
+		descriptor.addLocalVariable("s", "Ljava/lang/String;", null, null, 5, 0, 2);
+		descriptor.addLocalVariable("b", "Z", null, null, 6, 0, 2);
+		return descriptor;
+	}
+
+	/**
+	 * Generates the class, without frames so the class file version allows leaving them out.
+	 */
+	private static Method compile(String condition) throws Exception {
+		ConditionCompiler compiler = new ConditionCompiler(Condition.parse(condition), descriptor(condition), true, true);
+
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_5, ACC_PUBLIC | ACC_SUPER, CLASS_NAME, null, "java/lang/Object", null);
+		cw.visitField(ACC_PUBLIC | ACC_STATIC, "count", "I", null, null).visitEnd();
+		cw.visitField(ACC_PUBLIC, "instanceField", "I", null, null).visitEnd();
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "matches", METHOD_DESC, null, null);
+		mv.visitCode();
+		Label skip = new Label();
+		compiler.compile(mv, skip);
+		mv.visitInsn(ICONST_1);
+		mv.visitInsn(IRETURN);
+		mv.visitLabel(skip);
+		mv.visitInsn(ICONST_0);
+		mv.visitInsn(IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+
+		Class<?> c = new ProbeClassLoader().define(cw.toByteArray());
+		return c.getMethod("matches", int.class, long.class, double.class, String.class, boolean.class);
+	}
+}
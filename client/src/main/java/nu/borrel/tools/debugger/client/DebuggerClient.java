@@ -2,10 +2,13 @@ package nu.borrel.tools.debugger.client;
 
 import java.io.Console;
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
@@ -19,9 +22,12 @@ import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
+import nu.borrel.tools.debugger.agent.BreakpointBatchNotification;
 import nu.borrel.tools.debugger.agent.BreakpointNotification;
 import nu.borrel.tools.debugger.agent.DebuggerAgent;
 import nu.borrel.tools.debugger.agent.DebuggerAgentMBean;
+import nu.borrel.tools.debugger.agent.EventStreamReader;
+import nu.borrel.tools.debugger.agent.ObjectSnapshot;
 
 import com.sun.tools.attach.VirtualMachine;
 import com.sun.tools.attach.VirtualMachineDescriptor;
@@ -88,26 +94,219 @@ public class DebuggerClient {
 		private final String className;
 		private final String methodName;
 		private final int pc;
+		private final String condition;
 		
-		public BreakpointCommand(String className, String methodName, int pc) {
+		public BreakpointCommand(String className, String methodName, int pc, String condition) {
 			this.className = className;
 			this.methodName = methodName;
 			this.pc = pc;
+			this.condition = condition;
 		}
 
 		@Override
 		public String call(DebuggerAgentMBean agent, JMXConnector connector) throws Exception {
-			int result = agent.setBreakpoint(className, methodName, pc);
+			int result = agent.setBreakpoint(className, methodName, pc, condition);
 			return "Created breakpoint " + result;
 		}
 	}
 	
+	public static class PatternBreakpointCommand implements Command {
+		private final String classPattern;
+		private final String methodPattern;
+		private final String annotation;
+		private final String condition;
+		
+		public PatternBreakpointCommand(String classPattern, String methodPattern, String annotation, String condition) {
+			this.classPattern = classPattern;
+			this.methodPattern = methodPattern;
+			this.annotation = annotation;
+			this.condition = condition;
+		}
+
+		@Override
+		public String call(DebuggerAgentMBean agent, JMXConnector connector) throws Exception {
+			int result = agent.setPatternBreakpoint(classPattern, methodPattern, annotation, condition);
+			return "Created breakpoint " + result;
+		}
+	}
+	
+	public static class TraceCommand implements Command {
+		private final String className;
+		private final String methodName;
+		
+		public TraceCommand(String className, String methodName) {
+			this.className = className;
+			this.methodName = methodName;
+		}
+
+		@Override
+		public String call(DebuggerAgentMBean agent, JMXConnector connector) throws Exception {
+			int result = agent.setMethodTrace(className, methodName);
+			return "Created trace " + result;
+		}
+	}
+	
+	public static class TraceReportCommand implements Command {
+		private final int traceId;
+		private final boolean reset;
+		
+		public TraceReportCommand(int traceId, boolean reset) {
+			this.traceId = traceId;
+			this.reset = reset;
+		}
+
+		@Override
+		public String call(DebuggerAgentMBean agent, JMXConnector connector) throws Exception {
+			String report = agent.getMethodTraceReport(traceId);
+			if (reset) {
+				agent.resetMethodTrace(traceId);
+			}
+			return report;
+		}
+	}
+	
+	public static class AggregateCommand implements Command {
+		private final int breakpointId;
+		private final boolean aggregate;
+		private final boolean callers;
+		
+		public AggregateCommand(int breakpointId, boolean aggregate, boolean callers) {
+			this.breakpointId = breakpointId;
+			this.aggregate = aggregate;
+			this.callers = callers;
+		}
+
+		@Override
+		public String call(DebuggerAgentMBean agent, JMXConnector connector) throws Exception {
+			agent.setAggregation(breakpointId, aggregate, callers);
+			return "Breakpoint " + breakpointId + (aggregate ? " aggregates hits" : " sends hits");
+		}
+	}
+	
+	public static class SnapshotCommand implements Command {
+		private final int breakpointId;
+		private final boolean reset;
+		
+		public SnapshotCommand(int breakpointId, boolean reset) {
+			this.breakpointId = breakpointId;
+			this.reset = reset;
+		}
+
+		@Override
+		public String call(DebuggerAgentMBean agent, JMXConnector connector) throws Exception {
+			String snapshot = agent.getAggregationSnapshot(breakpointId);
+			if (reset) {
+				agent.resetAggregation(breakpointId);
+			}
+			return snapshot;
+		}
+	}
+	
+	public static class SnapshotLimitsCommand implements Command {
+		private final int breakpointId;
+		// null to only show the limits
+		private final int[] limits;
+		
+		public SnapshotLimitsCommand(int breakpointId, int[] limits) {
+			this.breakpointId = breakpointId;
+			this.limits = limits;
+		}
+
+		@Override
+		public String call(DebuggerAgentMBean agent, JMXConnector connector) throws Exception {
+			if (limits != null) {
+				agent.setSnapshotLimits(breakpointId, limits[0], limits[1], limits[2], limits[3], limits[4], limits[5]);
+			}
+			return "Snapshot limits for breakpoint " + breakpointId + ": " + agent.getSnapshotLimits(breakpointId);
+		}
+	}
+	
+	public static class BeginCommand implements Command {
+		@Override
+		public String call(DebuggerAgentMBean agent, JMXConnector connector) throws Exception {
+			agent.beginBreakpoints();
+			return "Collecting breakpoints until 'commit'";
+		}
+	}
+	
+	public static class CommitCommand implements Command {
+		@Override
+		public String call(DebuggerAgentMBean agent, JMXConnector connector) throws Exception {
+			int result = agent.commitBreakpoints();
+			return "Retransformed " + result + " classes";
+		}
+	}
+	
+	public static class StackCaptureCommand implements Command {
+		private final int breakpointId;
+		private final String mode;
+		private final int depth;
+		
+		public StackCaptureCommand(int breakpointId, String mode, int depth) {
+			this.breakpointId = breakpointId;
+			this.mode = mode;
+			this.depth = depth;
+		}
+
+		@Override
+		public String call(DebuggerAgentMBean agent, JMXConnector connector) throws Exception {
+			agent.setStackCapture(breakpointId, mode, depth);
+			return "Stack capture for breakpoint " + breakpointId + ": " + agent.getStackCapture(breakpointId);
+		}
+	}
+	
+	private static void printHit(String className, String methodName, StackTraceElement[] stack, Map<String, Serializable> localVariables) {
+		System.out.println("Breakpoint: " + className + "#" + methodName);
+		for (StackTraceElement ste : stack) {
+			System.out.println("\tat " + ste.getClassName() + "." + ste.getMethodName() + "(" + ste.getFileName() + ":" + ste.getLineNumber() + ")");
+		}
+		// 'this' is shown through its members, when it was captured with them
+		Serializable self = localVariables.get("this");
+		Map<String, Serializable> members = self instanceof ObjectSnapshot ? ((ObjectSnapshot) self).getFields() : null;
+		for (Map.Entry<String, Serializable> local : localVariables.entrySet()) {
+			if (members == null || !"this".equals(local.getKey())) {
+				System.out.println("\t   " + local.getKey() + " = " + local.getValue());
+			}
+		}
+		if (members != null) {
+			for (Map.Entry<String, Serializable> member : members.entrySet()) {
+				System.out.println("\t   this." + member.getKey() + " = " + member.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * Prints the hits arriving through the event stream of the agent, until the agent closes it.
+	 */
+	private static void startStreamReader(int port, String token) throws IOException {
+		Socket socket = new Socket(InetAddress.getByName(null), port);
+		final EventStreamReader reader = new EventStreamReader(socket.getInputStream(), socket.getOutputStream(), token);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					BreakpointNotification notification;
+					while ((notification = reader.read()) != null) {
+						printHit(notification.getClassName(), notification.getMethodName(), notification.getStackTrace(), notification.getLocalVariables());
+					}
+					System.out.println("Event stream closed");
+				} catch (IOException e) {
+					System.err.println("Event stream failed: " + e);
+				}
+			}
+		}, "event-stream-reader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
 	/**
 	 * @param args
 	 */
 	public static void main(String[] args) throws Exception {
-		if (args.length != 1) {
-			System.err.println("Please provide process id or main class name");			
+		// With --stream hits come through a socket, instead of as JMX notifications.
+		boolean stream = args.length == 2 && "--stream".equals(args[0]);
+		if (args.length != 1 && !stream) {
+			System.err.println("Please provide process id or main class name, optionally preceded by --stream");			
 			for (VirtualMachineDescriptor vmd : VirtualMachine.list()) {
 				System.out.println(vmd.id() + " " + vmd.displayName());
 			}
@@ -115,12 +314,13 @@ public class DebuggerClient {
 		}
 		
 		// sun-specific, need to find a nicer way.
-		String vmid = args[0];
+		String target = args[args.length - 1];
+		String vmid = target;
 		try {
-			Integer.parseInt(args[0]);
+			Integer.parseInt(target);
 		} catch (NumberFormatException e) {
 			for (VirtualMachineDescriptor vmd : VirtualMachine.list()) {
-				if (args[0].equals(vmd.displayName().split(" ", 2)[0])) {
+				if (target.equals(vmd.displayName().split(" ", 2)[0])) {
 					vmid = vmd.id();
 				}
 			}
@@ -157,23 +357,29 @@ public class DebuggerClient {
 			ObjectName agentName = DebuggerAgent.createObjectName();
 			DebuggerAgentMBean agent = JMX.newMBeanProxy(connector.getMBeanServerConnection(), agentName, DebuggerAgentMBean.class, true);
 			System.out.println("Connected to " + vm.id() + ", agent version " + agent.getVersion());
-			// NB: no filter, as that would require the ability to send the implementation of the filter to the debuggee.
-			//     That may not be possible depending on security settings.
-			connector.getMBeanServerConnection().addNotificationListener(agentName, new NotificationListener() {
-				@Override
-				public void handleNotification(Notification n, Object handback) {
-					if (n instanceof BreakpointNotification) {
-						BreakpointNotification notification = (BreakpointNotification) n;
-						System.out.println("Breakpoint: " + notification.getClassName() + "#" + notification.getMethodName());
-						for (StackTraceElement ste : notification.getStackTrace()) {
-							System.out.println("\tat " + ste.getClassName() + "." + ste.getMethodName() + "(" + ste.getFileName() + ":" + ste.getLineNumber() + ")");
-						}
-						for (Map.Entry<String, Serializable> local : notification.getLocalVariables().entrySet()) {
-							System.out.println("\t   " + local.getKey() + " = " + local.getValue());
+			if (stream) {
+				String token = agent.startEventStream(0);
+				int port = agent.getEventStreamPort();
+				startStreamReader(port, token);
+				System.out.println("Receiving hits on port " + port);
+			} else {
+				// NB: no filter, as that would require the ability to send the implementation of the filter to the debuggee.
+				//     That may not be possible depending on security settings.
+				connector.getMBeanServerConnection().addNotificationListener(agentName, new NotificationListener() {
+					@Override
+					public void handleNotification(Notification n, Object handback) {
+						if (n instanceof BreakpointNotification) {
+							BreakpointNotification notification = (BreakpointNotification) n;
+							printHit(notification.getClassName(), notification.getMethodName(), notification.getStackTrace(), notification.getLocalVariables());
+						} else if (n instanceof BreakpointBatchNotification) {
+							BreakpointBatchNotification batch = (BreakpointBatchNotification) n;
+							for (int i = 0; i < batch.getHitCount(); i++) {
+								printHit(batch.getClassName(i), batch.getMethodName(i), batch.getStackTrace(i), batch.getLocalVariables(i));
+							}
 						}
 					}
-				}
-			}, null, null);
+				}, null, null);
+			}
 			
 			while (true) {
 				Command command = new NopCommand();
@@ -184,8 +390,41 @@ public class DebuggerClient {
 					command = new DumpThreadsCommand();
 				} else if (Arrays.asList("quit", "exit", "bye").contains(words[0])) {
 					command = new QuitCommand();
-				} else if ("bp".equals(words[0]) && words.length == 4) {
-					command = new BreakpointCommand(words[1], words[2], Integer.parseInt(words[3]));
+				} else if ("bp".equals(words[0]) && words.length >= 4) {
+					// Everything after the line is the condition
+					String condition = words.length > 4 ? commandString.trim().split(" +", 5)[4] : null;
+					command = new BreakpointCommand(words[1], words[2], Integer.parseInt(words[3]), condition);
+				} else if ("pbp".equals(words[0]) && words.length >= 3) {
+					// An optional @annotation, then everything else is the condition
+					boolean annotated = words.length > 3 && words[3].startsWith("@");
+					String annotation = annotated ? words[3].substring(1) : null;
+					int conditionStart = annotated ? 4 : 3;
+					String condition = words.length > conditionStart ? commandString.trim().split(" +", conditionStart + 1)[conditionStart] : null;
+					command = new PatternBreakpointCommand(words[1], words[2], annotation, condition);
+				} else if ("trace".equals(words[0]) && words.length == 3) {
+					command = new TraceCommand(words[1], words[2]);
+				} else if ("report".equals(words[0]) && (words.length == 2 || words.length == 3)) {
+					command = new TraceReportCommand(Integer.parseInt(words[1]), words.length == 3 && "reset".equals(words[2]));
+				} else if ("aggregate".equals(words[0]) && (words.length == 3 || words.length == 4)) {
+					command = new AggregateCommand(Integer.parseInt(words[1]), !"off".equals(words[2]), words.length == 4 && "callers".equals(words[3]));
+				} else if ("snapshot".equals(words[0]) && (words.length == 2 || words.length == 3)) {
+					command = new SnapshotCommand(Integer.parseInt(words[1]), words.length == 3 && "reset".equals(words[2]));
+				} else if ("limits".equals(words[0]) && (words.length == 2 || words.length == 8)) {
+					// depth, elements, fields, characters, bytes, microseconds
+					int[] limits = null;
+					if (words.length == 8) {
+						limits = new int[6];
+						for (int i = 0; i < limits.length; i++) {
+							limits[i] = Integer.parseInt(words[i + 2]);
+						}
+					}
+					command = new SnapshotLimitsCommand(Integer.parseInt(words[1]), limits);
+				} else if ("begin".equals(words[0])) {
+					command = new BeginCommand();
+				} else if ("commit".equals(words[0])) {
+					command = new CommitCommand();
+				} else if ("stack".equals(words[0]) && (words.length == 3 || words.length == 4)) {
+					command = new StackCaptureCommand(Integer.parseInt(words[1]), words[2], words.length == 4 ? Integer.parseInt(words[3]) : 0);
 				} else {
 					command = new ErrorCommand("Syntax Error: '" + commandString + "'");
 				}